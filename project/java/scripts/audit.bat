@@ -0,0 +1,5 @@
+REM # print the audit trail of menu, user and payment changes, oldest first
+REM # filter with --user login, --order id, --from/--to YYYY-MM-DD [HH:MM], --action name
+REM #java -cp . AuditReader audit --order 42
+REM #java -cp . AuditReader audit --action menu-update --from 2022-05-01
+java -cp . AuditReader audit %*
@@ -5,13 +5,21 @@ REM #export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 REM #export PATH=$JAVA_HOME/bin:$PATH
 REM
 REM # compile the java program
-REM #javac -d $DIR/../classes $DIR/../src/Cafe.java
-javac -d "C:\Users\playt\Desktop\Spring 2022\CS166\Projects\phase3\project-1\project\java\scripts" "C:\Users\playt\Desktop\Spring 2022\CS166\Projects\phase3\project-1\project\java\src\Cafe.java"
+REM #javac -d $DIR/../classes $DIR/../src/*.java
+javac -d "C:\Users\playt\Desktop\Spring 2022\CS166\Projects\phase3\project-1\project\java\scripts" "C:\Users\playt\Desktop\Spring 2022\CS166\Projects\phase3\project-1\project\java\src\*.java"
 
 REM #run the java program
 REM #Use your database name, port number and login
 REM #java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Cafe $USER"_DB" $PGPORT $USER
 
-java Cafe postgres 5432 postgres
+REM # optional: "compile.bat --archive" also records a class-data-sharing archive (JDK 13+),
+REM # later starts map the loaded classes from it instead of loading them again
+if /i "%~1"=="--archive" java -XX:ArchiveClassesAtExit=cafe.jsa Cafe postgres 5432 postgres --warmup
+
+if exist cafe.jsa (
+   java -XX:SharedArchiveFile=cafe.jsa Cafe postgres 5432 postgres
+) else (
+   java Cafe postgres 5432 postgres
+)
 
 
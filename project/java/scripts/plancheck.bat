@@ -0,0 +1,6 @@
+REM # query plan regression check: seeds a scratch schema and explains every Cafe query shape
+REM # run from this directory after compile.bat; exits 1 if a shape regressed
+REM # record the baseline once on a good build:
+REM #java -cp ".;..\lib\postgresql-42.3.6.jar" PlanCheck postgres 5432 postgres --update
+REM # later runs compare against it (add --orders N for a larger history)
+java -cp ".;..\lib\postgresql-42.3.6.jar" PlanCheck postgres 5432 postgres
@@ -0,0 +1,387 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only audit trail of sensitive changes: menu adds, updates and
+ * deletes, user type and password changes, and orders marked paid or unpaid.
+ *
+ * Recording costs the action one allocation and one offer to a lock-free
+ * queue; it never waits for the disk.  A writer thread drains the queue into
+ * memory-mapped segment files of SEGMENT_BYTES each, -Dcafe.audit (default
+ * "audit") holds them as audit-<millis>.seg, and when a record does not fit
+ * the segment is forced and a new one started.  The mapping is forced every
+ * FLUSH_MS while there are new records and once more on stop, so a crash
+ * loses at most the last FLUSH_MS of the trail.  Passwords are never logged,
+ * only that one was changed.
+ *
+ * Segment layout: a HEADER_SIZE byte header (magic, version) followed by
+ * records of [int length][int crc32][payload]; a zero length marks the end.
+ * AuditReader prints and filters the segments.
+ *
+ */
+public class AuditLog {
+
+   public static final int MENU_ADD = 1;
+   public static final int MENU_UPDATE = 2;
+   public static final int MENU_DELETE = 3;
+   public static final int USER_TYPE = 4;
+   public static final int USER_PASSWORD = 5;
+   public static final int ORDER_PAID = 6;
+   public static final int ORDER_UNPAID = 7;
+
+   private static final String[] NAMES = { "", "menu-add", "menu-update", "menu-delete", "user-type", "user-password", "order-paid", "order-unpaid" };
+
+   private static final int MAGIC = 0x43414641; // "CAFA"
+   private static final int VERSION = 1;
+   private static final int HEADER_SIZE = 16;
+   private static final int RECORD_HEADER = 8;
+
+   private static final int SEGMENT_BYTES = 4 * 1024 * 1024;
+
+   // how often the writer forces new records to disk
+   private static final long FLUSH_MS = 200;
+
+   // events waiting for the writer before new ones are dropped (and counted)
+   private static final int MAX_PENDING = 65536;
+
+   /**
+    * One audited change, as stored in one record.
+    */
+   public static class Event {
+      public final long time;
+      public final int action;
+      // the order the change is about, 0 if none
+      public final int orderid;
+      public final String actor;
+      public final String subject;
+      public final String detail;
+
+      public Event(long time, int action, int orderid, String actor, String subject, String detail) {
+         this.time = time;
+         this.action = action;
+         this.orderid = orderid;
+         this.actor = actor;
+         this.subject = subject;
+         this.detail = detail;
+      }
+
+      byte[] encode() throws IOException {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeLong(time);
+         out.writeByte(action);
+         out.writeInt(orderid);
+         out.writeUTF(actor);
+         out.writeUTF(subject);
+         out.writeUTF(detail);
+         out.flush();
+         return bytes.toByteArray();
+      }
+
+      static Event decode(byte[] payload) throws IOException {
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+         long time = in.readLong();
+         int action = in.readByte();
+         int orderid = in.readInt();
+         return new Event(time, action, orderid, in.readUTF(), in.readUTF(), in.readUTF());
+      }
+
+      public String toString() {
+         return String.format("%s  %-13s %-12s %-8s %-20s %s", new Timestamp(time).toString().substring(0, 19), name(action),
+            actor, orderid == 0 ? "-" : Integer.toString(orderid), subject, detail);
+      }
+   }//end Event
+
+   private final File dir;
+   private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<Event>();
+   private final AtomicInteger pending = new AtomicInteger();
+   private final AtomicLong dropped = new AtomicLong();
+
+   // owned by the writer thread
+   private RandomAccessFile file = null;
+   private MappedByteBuffer buffer = null;
+   private int writePos;
+   private long lastSegment = 0;
+
+   private Thread writer = null;
+   private volatile boolean running = false;
+
+   /**
+    * Opens the audit directory, creating it if needed, and resumes the
+    * newest segment after its last good record.
+    *
+    * @param path the directory holding the segments
+    * @throws java.io.IOException when the directory or segment cannot be opened
+    */
+   public AuditLog(String path) throws IOException {
+      this.dir = new File(path);
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create audit directory " + path);
+      File[] segments = segments(dir);
+      if (segments.length > 0) {
+         File last = segments[segments.length - 1];
+         lastSegment = started(last);
+         open(last);
+         while (readAt(buffer, writePos) != null)
+            writePos += RECORD_HEADER + buffer.getInt(writePos);
+         // cut off anything torn beyond the last good record
+         if (writePos + 4 <= buffer.capacity())
+            buffer.putInt(writePos, 0);
+      } else {
+         rotate();
+      }
+   }//end AuditLog
+
+   /**
+    * @param action an action code
+    * @return the name of the action, as used by AuditReader
+    */
+   public static String name(int action) {
+      return action > 0 && action < NAMES.length ? NAMES[action] : "unknown";
+   }
+
+   /**
+    * @param name an action name
+    * @return its action code, or 0 if there is none
+    */
+   public static int action(String name) {
+      for (int i = 1; i < NAMES.length; ++i)
+         if (NAMES[i].equalsIgnoreCase(name))
+            return i;
+      return 0;
+   }//end action
+
+   /**
+    * @param dir a directory holding segments
+    * @return its segment files, oldest first
+    */
+   public static File[] segments(File dir) {
+      File[] segments = dir.listFiles();
+      if (segments == null)
+         return new File[0];
+      List<File> found = new ArrayList<File>();
+      for (File segment : segments)
+         if (segment.getName().matches("audit-\\d+\\.seg"))
+            found.add(segment);
+      segments = found.toArray(new File[0]);
+      // the names are zero padded, so name order is time order
+      Arrays.sort(segments);
+      return segments;
+   }//end segments
+
+   /**
+    * @param segment a segment file
+    * @return when the segment was started, from its name
+    */
+   public static long started(File segment) {
+      String name = segment.getName();
+      return Long.parseLong(name.substring("audit-".length(), name.length() - ".seg".length()));
+   }//end started
+
+   /**
+    * Reads every good record of one segment.
+    *
+    * @param segment the segment file
+    * @return its events, in the order they were written
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public static List<Event> read(File segment) throws IOException {
+      List<Event> events = new ArrayList<Event>();
+      RandomAccessFile in = new RandomAccessFile(segment, "r");
+      try {
+         MappedByteBuffer mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+         if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC)
+            throw new IOException(segment + " is not an audit segment");
+         int pos = HEADER_SIZE;
+         byte[] payload;
+         while ((payload = readAt(mapped, pos)) != null) {
+            events.add(Event.decode(payload));
+            pos += RECORD_HEADER + payload.length;
+         }
+      } finally {
+         in.close();
+      }
+      return events;
+   }//end read
+
+   /*
+    * Returns the payload of the record at pos, or null if there is no valid
+    * record there.
+    */
+   private static byte[] readAt(MappedByteBuffer buffer, int pos) {
+      if (pos + RECORD_HEADER > buffer.capacity())
+         return null;
+      int length = buffer.getInt(pos);
+      if (length <= 0 || pos + RECORD_HEADER + length > buffer.capacity())
+         return null;
+      byte[] payload = new byte[length];
+      for (int i = 0; i < length; ++i)
+         payload[i] = buffer.get(pos + RECORD_HEADER + i);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != buffer.getInt(pos + 4))
+         return null;
+      return payload;
+   }//end readAt
+
+   private void open(File segment) throws IOException {
+      file = new RandomAccessFile(segment, "rw");
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(SEGMENT_BYTES, file.length()));
+      if (buffer.getInt(0) != MAGIC) {
+         buffer.putInt(0, MAGIC);
+         buffer.putInt(4, VERSION);
+         buffer.putInt(HEADER_SIZE, 0);
+      }
+      writePos = HEADER_SIZE;
+   }//end open
+
+   /*
+    * Forces and closes the current segment and starts a new one.
+    */
+   private void rotate() throws IOException {
+      closeSegment();
+      // never reuse a name, even for two segments within one millisecond
+      lastSegment = Math.max(System.currentTimeMillis(), lastSegment + 1);
+      open(new File(dir, String.format("audit-%013d.seg", lastSegment)));
+      buffer.force();
+   }//end rotate
+
+   private void closeSegment() {
+      if (buffer != null)
+         buffer.force();
+      buffer = null;
+      try {
+         if (file != null)
+            file.close();
+      } catch (IOException e) {
+         // ignored.
+      }
+      file = null;
+   }//end closeSegment
+
+   /**
+    * Starts the writer thread.
+    */
+   public synchronized void start() {
+      if (running)
+         return;
+      running = true;
+      writer = new Thread(new Runnable() {
+         public void run() {
+            writeLoop();
+         }
+      }, "audit-writer");
+      writer.setDaemon(true);
+      writer.start();
+   }//end start
+
+   /**
+    * Stops the writer after it wrote and forced everything recorded so far.
+    */
+   public void stop() {
+      Thread stopping;
+      synchronized (this) {
+         running = false;
+         stopping = writer;
+         writer = null;
+      }
+      if (stopping != null) {
+         LockSupport.unpark(stopping);
+         try {
+            stopping.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      closeSegment();
+   }//end stop
+
+   /**
+    * Records a change.  Returns at once; the writer appends it shortly.
+    *
+    * @param actor the login that made the change
+    * @param action one of the action codes
+    * @param orderid the order changed, or 0
+    * @param subject what was changed: an item name, a login
+    * @param detail the change itself, for example old and new value
+    */
+   public void record(String actor, int action, int orderid, String subject, String detail) {
+      if (pending.incrementAndGet() > MAX_PENDING) {
+         pending.decrementAndGet();
+         dropped.incrementAndGet();
+         return;
+      }
+      queue.offer(new Event(System.currentTimeMillis(), action, orderid,
+         actor == null ? "" : actor, subject == null ? "" : subject, detail == null ? "" : detail));
+   }//end record
+
+   /**
+    * @return the number of events dropped because the writer fell behind
+    */
+   public long dropped() {
+      return dropped.get();
+   }
+
+   private void writeLoop() {
+      boolean dirty = false;
+      while (true) {
+         Event event = queue.poll();
+         if (event != null) {
+            pending.decrementAndGet();
+            try {
+               append(event);
+               dirty = true;
+            } catch (IOException e) {
+               dropped.incrementAndGet();
+               System.err.println("Warning - Audit record lost: " + e.getMessage());
+            }
+            continue;
+         }
+         if (dirty) {
+            buffer.force();
+            dirty = false;
+         }
+         if (!running && queue.isEmpty())
+            return;
+         // new events wait at most FLUSH_MS, nobody ever wakes the writer on the hot path
+         LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_MS));
+      }
+   }//end writeLoop
+
+   private void append(Event event) throws IOException {
+      byte[] payload = event.encode();
+      // keep room for the terminating zero length
+      if (RECORD_HEADER + payload.length + 4 > SEGMENT_BYTES - HEADER_SIZE)
+         throw new IOException("Audit record too large");
+      if (writePos + RECORD_HEADER + payload.length + 4 > buffer.capacity())
+         rotate();
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      int end = writePos + RECORD_HEADER + payload.length;
+      for (int i = 0; i < payload.length; ++i)
+         buffer.put(writePos + RECORD_HEADER + i, payload[i]);
+      buffer.putInt(end, 0);
+      buffer.putInt(writePos + 4, (int) crc.getValue());
+      // the length goes last, a record is only visible once it is complete
+      buffer.putInt(writePos, payload.length);
+      writePos = end;
+   }//end append
+
+}//end AuditLog
@@ -0,0 +1,90 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+
+/**
+ * Prints the audit trail written by AuditLog, oldest first, optionally
+ * filtered by the login that made the change, the order it was about, a
+ * time window and the kind of change.  Times are YYYY-MM-DD or
+ * YYYY-MM-DD HH:MM; --from is inclusive, --to exclusive.  Segments wholly
+ * before --from are skipped without being read.
+ *
+ * Usage: java AuditReader [dir] [--user login] [--order id] [--from time] [--to time] [--action name]
+ *
+ */
+public class AuditReader {
+
+   private static final String USAGE = "Usage: java AuditReader [dir] [--user login] [--order id] [--from time] [--to time] [--action name]";
+
+   public static void main(String[] args) {
+      String dir = System.getProperty("cafe.audit", "audit");
+      String user = null;
+      int order = 0;
+      int action = 0;
+      long from = Long.MIN_VALUE;
+      long to = Long.MAX_VALUE;
+      try {
+         for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--user") && i + 1 < args.length)
+               user = args[++i];
+            else if (args[i].equals("--order") && i + 1 < args.length)
+               order = Integer.parseInt(args[++i].trim());
+            else if (args[i].equals("--from") && i + 1 < args.length)
+               from = parseTime(args[++i]).getTime();
+            else if (args[i].equals("--to") && i + 1 < args.length)
+               to = parseTime(args[++i]).getTime();
+            else if (args[i].equals("--action") && i + 1 < args.length) {
+               action = AuditLog.action(args[++i]);
+               if (action == 0)
+                  throw new IllegalArgumentException("unknown action " + args[i]);
+            } else if (!args[i].startsWith("--"))
+               dir = args[i];
+            else
+               throw new IllegalArgumentException("unknown option " + args[i]);
+         }
+      } catch (IllegalArgumentException e) {
+         System.err.println(e.getMessage());
+         System.err.println(USAGE);
+         System.exit(2);
+      }
+
+      File[] segments = AuditLog.segments(new File(dir));
+      if (segments.length == 0) {
+         System.err.println("No audit segments in " + dir);
+         System.exit(2);
+      }
+      long matched = 0;
+      for (int s = 0; s < segments.length; ++s) {
+         // a segment only holds events from its start until the next one starts
+         if (s + 1 < segments.length && AuditLog.started(segments[s + 1]) <= from)
+            continue;
+         try {
+            for (AuditLog.Event event : AuditLog.read(segments[s])) {
+               if (event.time < from || event.time >= to)
+                  continue;
+               if (user != null && !event.actor.equals(user) && !event.subject.equals(user))
+                  continue;
+               if (order != 0 && event.orderid != order)
+                  continue;
+               if (action != 0 && event.action != action)
+                  continue;
+               System.out.println(event);
+               ++matched;
+            }
+         } catch (IOException e) {
+            System.err.println("Skipping " + segments[s] + ": " + e.getMessage());
+         }
+      }
+      System.out.println(String.format("%d event(s)", matched));
+   }//end main
+
+   private static Timestamp parseTime(String text) {
+      text = text.trim();
+      if (text.matches("\\d{4}-\\d{2}-\\d{2}"))
+         text += " 00:00";
+      if (text.matches("\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}"))
+         text += ":00";
+      return Timestamp.valueOf(text);
+   }//end parseTime
+
+}//end AuditReader
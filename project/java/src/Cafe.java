@@ -13,17 +13,25 @@
 
 import java.sql.DriverManager;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.io.File;
+import java.io.IOException;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -32,8 +40,76 @@ import java.util.Scanner;
  */
 public class Cafe {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // reference to physical database connection, null while working offline.
+   private volatile Connection _connection = null;
+
+   // read replicas for staleness tolerant queries, see -Dcafe.replicas
+   private final ReadRouter _reads = new ReadRouter(this);
+
+   // orders taken while the database is unreachable, null if it could not be opened
+   public OrderJournal journal = null;
+
+   // size of the mapped journal file, enough for tens of thousands of orders
+   private static final int JOURNAL_BYTES = 16 * 1024 * 1024;
+
+   // trail of menu, user and payment changes, null if it could not be opened
+   private AuditLog _audit = null;
+
+   // what _connection was opened with, for additional background connections
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+
+   // in-memory search index over Menu, null when it has to be rebuilt
+   private volatile MenuIndex _menuIndex = null;
+
+   // the menu index is also rebuilt after this long, to pick up other registers' changes
+   private static final long MENU_REFRESH_MS = 60 * 1000;
+
+   // the settle statements of settleOrders, also explained as they are by PlanCheck
+   static final String SETTLE_BY_LIST =
+      "With settled As (Update Orders Set paid = 't' Where paid = 'f' and not cancelled and orderid = ANY (?) and exists (Select 1 From ItemStatus I Where I.orderid = Orders.orderid) " +
+      "Returning orderid, total) Select count(*), coalesce(sum(total),0), coalesce(array_to_string(array_agg(orderid), ','), '') From settled";
+   static final String SETTLE_BY_WINDOW =
+      "With settled As (Update Orders Set paid = 't' Where paid = 'f' and not cancelled and timestamprecieved >= ? and timestamprecieved < ? and exists (Select 1 From ItemStatus I Where I.orderid = Orders.orderid) " +
+      "Returning orderid, total) Select count(*), coalesce(sum(total),0), coalesce(array_to_string(array_agg(orderid), ','), '') From settled";
+
+   // adds the items of a query (%2$s) missing from an order (%1$s) and reprices it, returning the items added
+   static final String ADD_ITEMS =
+      "With added As (insert into ItemStatus (orderid,itemName,lastUpdated,status,comments) Select '%1$s', S.itemName, Now(), '', '' From (%2$s) S Where S.itemName not in (Select itemName From ItemStatus Where orderid = '%1$s') Returning itemName), " +
+      "repriced As (Update orders set total = (Select coalesce(sum(M.price),0) From ItemStatus I, Menu M Where I.itemName = M.itemName and I.orderid = '%1$s') + (Select coalesce(sum(M.price),0) From added A, Menu M Where A.itemName = M.itemName) where orderid = '%1$s') " +
+      "Select itemName From added";
+
+   // the items ADD_ITEMS adds for favorites (login) and for repeating the last order (login, current order)
+   static final String FAVORITE_ITEMS = "Select F.itemName From FavItems F Where F.login = '%s'";
+   static final String LAST_ORDER_ITEMS = "Select L.itemName From ItemStatus L Where L.orderid = (Select O.orderid From Orders O Where O.login = '%s' and O.orderid <> '%s' and not O.cancelled and exists (Select * From ItemStatus I Where I.orderid = O.orderid) Order By O.timestamprecieved DESC Limit 1)";
+
+   // cancels an order (%s) that is neither paid nor canceled yet, returning a row per item
+   // (one row with a null item for an empty order), no rows if nothing was canceled
+   static final String CANCEL_ORDER =
+      "With cancelled As (Update orders set cancelled = 't' where orderid = '%s' and paid = 'f' and not cancelled Returning orderid) Select C.orderid, I.itemName From cancelled C Left Join ItemStatus I On I.orderid = C.orderid";
+
+   // the statements of the order, menu and login screens, also explained as they are by PlanCheck
+   static final String LOG_IN = "SELECT * FROM USERS WHERE login = '%s' AND password = '%s'";
+   static final String ALL_MENU = "Select * From Menu";
+   static final String MENU_ITEM = "Select * From Menu Where itemname = '%s'";
+   static final String SET_MENU_PRICE = "Update Menu SET price = '%s' Where itemname = '%s'";
+   static final String DELETE_MENU_ITEM = "Delete from Menu Where itemname = '%s'";
+   static final String DRAFT_ORDER = "Select * From Orders where login = '%s' and Total = '0.0' and not cancelled";
+   static final String NEW_ORDER = "Insert Into Orders(login, paid) VALUES ('%s','f')";
+   static final String OPEN_ORDER = "Select orderid From Orders Where orderid = '%s' and paid = 'f' and not cancelled";
+   static final String TOUCH_ORDER = "Update orders set timestamprecieved = 'Now()' where orderid = '%s'";
+   static final String ORDER_BY_ID = "Select * From Orders Where orderid = '%s'";
+   static final String ADD_ITEM = "insert into ItemStatus (orderid,itemName,lastUpdated,status,comments) Values ('%s','%s',Now(),'','')";
+   static final String SET_TOTAL = "Update orders set total = '%s' where orderid = '%s' ";
+   static final String ORDER_ITEMS = "select * from itemstatus where orderid in (select orderid from orders where orderid = '%s')";
+   static final String ORDER_LINE = "Select * From ItemStatus Where itemname = '%s' and orderid = '%s'";
+   static final String REMOVE_ITEM = "Delete from ItemStatus where itemname = '%s' and orderId = '%s'";
+   static final String ORDER_LINES = "Select * From ItemStatus Where orderid = '%s'";
+   static final String UNPAID_TODAY = "Select * From Orders Where paid = 'f' and not cancelled and timestamprecieved >= NOW() - '1 day'::INTERVAL";
+   static final String LAST_ORDERS = "Select * From Orders O Where O.login in (Select U.login From Users U Where U.login = '%s') and not O.cancelled Order By timestamprecieved DESC Limit 5";
+   // sets paid ('t' or 'f') on an order that is not canceled, returning it if it changed
+   static final String MARK_PAID = "Update orders set paid = '%s' where orderId = '%s' and not cancelled Returning orderid";
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -44,6 +120,23 @@ public class Cafe {
    public String user_login = null;
    public String current_order = null;
 
+   // set for sessions signed in offline, whose password was checked against _signins only
+   public boolean unverified = false;
+
+   // salt and salted SHA-256 of the password of every login that signed in
+   // online since start up, the only logins that may sign in offline
+   private final Map<String, byte[][]> _signins = new ConcurrentHashMap<String, byte[][]>();
+   private final SecureRandom _random = new SecureRandom();
+
+   // in-process sales counters used to order the menu by what is selling now
+   public final PopularityTracker popularity = new PopularityTracker(this);
+
+   // background draft purging and statistics upkeep, on its own connection
+   public final Maintenance maintenance = new Maintenance(this);
+
+   // store databases the orders are sharded over, see -Dcafe.stores
+   public final StoreRouter stores;
+
    /**
     * Creates a new instance of Cafe
     *
@@ -54,23 +147,136 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Cafe(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd, true);
+   }//end Cafe
+
+   /**
+    * Creates a new instance of Cafe, optionally without the connection
+    * progress messages, for connecting in the background while the menus are
+    * already on screen.  Errors are always reported.
+    *
+    * @param verbose false to suppress the progress messages
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Cafe(String dbname, String dbport, String user, String passwd, boolean verbose) throws SQLException {
+
+      // constructs the connection URL
+      this._url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+      this._user = user;
+      this._passwd = passwd;
+
+      // with several stores the session works on its own store's database,
+      // and only Menu and Users writes go to the command line database
+      this.stores = new StoreRouter(this, this._url);
+      this._url = this.stores.url(this.stores.home());
+
+      // the journal is opened first so orders left over from an outage get replayed
+      try{
+         this.journal = new OrderJournal(this, System.getProperty("cafe.journal", "cafe-orders.journal"), JOURNAL_BYTES);
+         this.journal.start();
+      }catch (IOException e){
+         System.err.println("Warning - Offline order journal unavailable: " + e.getMessage() );
+      }//end catch
 
-      System.out.print("Connecting to database...");
       try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
+         this._audit = new AuditLog(System.getProperty("cafe.audit", "audit"));
+         this._audit.start();
+      }catch (IOException e){
+         System.err.println("Warning - Audit log unavailable, changes are not audited: " + e.getMessage() );
+      }//end catch
+
+      if (verbose)
+         System.out.print("Connecting to database...");
+      try{
+         if (verbose)
+            System.out.println ("Connection URL: " + this._url + "\n");
 
          // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
+         this._connection = DriverManager.getConnection(this._url, user, passwd);
+         if (verbose)
+            System.out.println("Done");
+
+         this.popularity.start();
+         this.maintenance.start();
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
-         System.exit(-1);
+         if (this.journal == null)
+            System.exit(-1);
+         System.out.println("Working offline: orders are journaled locally and sent once the database is back.\n");
       }//end catch
    }//end Cafe
 
+   /**
+    * Method to return the session connection.
+    *
+    * @return the physical connection
+    * @throws java.sql.SQLException when working offline
+    */
+   Connection connection() throws SQLException {
+      Connection conn = this._connection;
+      if (conn == null)
+         throw new SQLException("Database unavailable, working offline", "08003");
+      return conn;
+   }//end connection
+
+   /**
+    * @return true while the database is unreachable
+    */
+   public boolean isOffline(){
+      return this._connection == null;
+   }//end isOffline
+
+   /**
+    * Method to check whether a failure means the database connection is gone,
+    * as opposed to a failing statement.
+    *
+    * @param e the exception thrown by the JDBC driver
+    * @return true for connection failures
+    */
+   public static boolean isConnectionError(SQLException e){
+      return e.getSQLState() != null && e.getSQLState().startsWith("08");
+   }//end isConnectionError
+
+   /**
+    * Method to check whether a failure means the database cannot take work
+    * right now: the connection is gone, a statement timed out (57014) or the
+    * DbScheduler shed it (53000).  Orders hitting these are journaled.
+    *
+    * @param e the exception thrown by the JDBC driver
+    * @return true when the order should be taken offline
+    */
+   public static boolean isUnavailable(SQLException e){
+      return isConnectionError(e) || "57014".equals(e.getSQLState()) || "53000".equals(e.getSQLState());
+   }//end isUnavailable
+
+   /**
+    * Method to drop the session connection after it failed, so that orders
+    * are journaled until the replayer reconnects.
+    */
+   public void goOffline(){
+      Connection conn = this._connection;
+      this._connection = null;
+      try{
+         if (conn != null)
+            conn.close ();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end goOffline
+
+   /**
+    * Method used by the journal replayer to hand over a working connection
+    * once the database is reachable again.
+    *
+    * @param conn the new session connection
+    */
+   public void reconnect(Connection conn){
+      this._connection = conn;
+      this.popularity.start();
+      this.maintenance.start();
+   }//end reconnect
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -79,16 +285,175 @@ public class Cafe {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      DbScheduler.admit ();
+      try{
+         // creates a statement object
+         Statement stmt = connection().createStatement ();
+         stmt.setQueryTimeout (DbScheduler.timeout ());
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+         // issues the update instruction
+         stmt.executeUpdate (sql);
+         this._reads.wrote (stmt.getConnection ());
 
-      // close the instruction
-      stmt.close ();
+         // close the instruction
+         stmt.close ();
+      }finally{
+         DbScheduler.release ();
+      }//end try
    }//end executeUpdate
 
+   /**
+    * Method to execute a data changing statement that returns rows, an
+    * INSERT, UPDATE or DELETE with a RETURNING clause or a data changing
+    * WITH query.
+    *
+    * @param sql the input SQL string
+    * @return the rows returned
+    * @throws java.sql.SQLException when the statement failed
+    */
+   public List<List<String>> executeUpdateAndReturnResult (String sql) throws SQLException {
+      DbScheduler.admit ();
+      try{
+         Connection conn = connection();
+         List<List<String>> result = executeQueryAndReturnResult (conn, sql);
+         this._reads.wrote (conn);
+         return result;
+      }finally{
+         DbScheduler.release ();
+      }//end try
+   }//end executeUpdateAndReturnResult
+
+   /**
+    * Method to execute several update SQL statements as a single transaction.
+    * The statements are sent together in one batch, so the whole
+    * transaction costs a single round-trip; if any of them fails nothing is
+    * applied.
+    *
+    * @param sql the update SQL strings, in execution order
+    * @return the number of rows changed by each statement
+    * @throws java.sql.SQLException when any of the updates failed
+    */
+   public int[] executeTransaction (String... sql) throws SQLException {
+      return executeTransaction (null, sql);
+   }//end executeTransaction
+
+   /**
+    * Method to execute several update SQL statements as a single transaction,
+    * like executeTransaction, where some statements have a RETURNING clause.
+    * Those are run on their own inside the transaction, between the batches
+    * of the others, and the first column of every row they return is kept,
+    * so callers learn which rows really changed.
+    *
+    * @param returned maps the index of every RETURNING statement to an empty
+    *        list that receives its keys, null if there are none
+    * @param sql the update SQL strings, in execution order
+    * @return the number of rows changed by each statement
+    * @throws java.sql.SQLException when any of the updates failed
+    */
+   public int[] executeTransaction (Map<Integer, List<String>> returned, String... sql) throws SQLException {
+      DbScheduler.admit ();
+      try{
+         Connection conn = connection();
+         int[] counts = executeTransaction (conn, returned, sql);
+         this._reads.wrote (conn);
+         return counts;
+      }finally{
+         DbScheduler.release ();
+      }//end try
+   }//end executeTransaction
+
+   private static int[] executeTransaction (Connection conn, Map<Integer, List<String>> returned, String... sql) throws SQLException {
+      boolean autoCommit = conn.getAutoCommit ();
+      Statement stmt = conn.createStatement ();
+      stmt.setQueryTimeout (DbScheduler.timeout ());
+      try{
+         conn.setAutoCommit (false);
+         int[] counts = new int[sql.length];
+         int from = 0;
+         for (int i = 0; i <= sql.length; ++i){
+            if (i < sql.length && (returned == null || !returned.containsKey (i))){
+               stmt.addBatch (sql[i]);
+               continue;
+            }//end if
+            // the statements batched so far go first, in one round-trip
+            if (i > from){
+               int[] batched = stmt.executeBatch ();
+               System.arraycopy (batched, 0, counts, from, batched.length);
+            }//end if
+            if (i < sql.length){
+               List<String> keys = returned.get (i);
+               stmt.execute (sql[i]);
+               ResultSet rs = stmt.getResultSet ();
+               while (rs.next ())
+                  keys.add (rs.getString (1).trim ());
+               rs.close ();
+               counts[i] = keys.size ();
+            }//end if
+            from = i + 1;
+         }//end for
+         conn.commit ();
+         return counts;
+      }catch (SQLException e){
+         conn.rollback ();
+         throw e;
+      }finally{
+         stmt.close ();
+         conn.setAutoCommit (autoCommit);
+      }//end try
+   }//end executeTransaction
+
+   /**
+    * Method to execute an update of the global tables, Menu and Users (and
+    * FavItems).  With several stores these live in the command line
+    * database and reach the stores by replication; otherwise this is the
+    * same as executeUpdate.
+    *
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeGlobalUpdate (String sql) throws SQLException {
+      executeGlobalTransaction (sql);
+   }//end executeGlobalUpdate
+
+   /**
+    * Method to execute several updates of the global tables as a single
+    * transaction, see executeGlobalUpdate.
+    *
+    * @param sql the update SQL strings, in execution order
+    * @return the number of rows changed by each statement
+    * @throws java.sql.SQLException when any of the updates failed
+    */
+   public int[] executeGlobalTransaction (String... sql) throws SQLException {
+      return executeGlobalTransaction (null, sql);
+   }//end executeGlobalTransaction
+
+   /**
+    * Method to execute several updates of the global tables as a single
+    * transaction, with RETURNING statements, see executeTransaction.
+    *
+    * @param returned maps the index of every RETURNING statement to an empty
+    *        list that receives its keys, null if there are none
+    * @param sql the update SQL strings, in execution order
+    * @return the number of rows changed by each statement
+    * @throws java.sql.SQLException when any of the updates failed
+    */
+   public int[] executeGlobalTransaction (Map<Integer, List<String>> returned, String... sql) throws SQLException {
+      DbScheduler.admit ();
+      try{
+         if (!this.stores.enabled ())
+            return executeTransaction (returned, sql);
+         try{
+            return executeTransaction (this.stores.global (), returned, sql);
+         }catch (SQLException e){
+            if (isConnectionError (e))
+               this.stores.globalFailed ();
+            throw e;
+         }//end try
+      }finally{
+         DbScheduler.release ();
+      }//end try
+   }//end executeGlobalTransaction
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -99,8 +464,47 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      DbScheduler.admit ();
+      try{
+         return executeQueryAndPrintResult (connection(), query);
+      }finally{
+         DbScheduler.release ();
+      }//end try
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Same as executeQueryAndPrintResult, but the query may be answered by a
+    * read replica when one is configured and current enough.
+    *
+    * @param query the input query string
+    * @param ownData true if the result must include this session's own writes
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeReadQueryAndPrintResult (String query, boolean ownData) throws SQLException {
+      DbScheduler.admit ();
+      try{
+         Connection replica = this._reads.route (ownData);
+         if (replica != null){
+            try{
+               return executeQueryAndPrintResult (replica, query);
+            }catch (SQLException e){
+               // fall back to the primary if the replica went away
+               if (!isConnectionError(e))
+                  throw e;
+               this._reads.failed (replica);
+            }//end try
+         }//end if
+         return executeQueryAndPrintResult (connection(), query);
+      }finally{
+         DbScheduler.release ();
+      }//end try
+   }//end executeReadQueryAndPrintResult
+
+   private static int executeQueryAndPrintResult (Connection conn, String query) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
+      stmt.setQueryTimeout (DbScheduler.timeout ());
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
@@ -142,8 +546,86 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      DbScheduler.admit ();
+      try{
+         return executeQueryAndReturnResult (connection(), query);
+      }finally{
+         DbScheduler.release ();
+      }//end try
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Same as executeQueryAndReturnResult, but the query may be answered by a
+    * read replica when one is configured and current enough.
+    *
+    * @param query the input query string
+    * @param ownData true if the result must include this session's own writes
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeReadQueryAndReturnResult (String query, boolean ownData) throws SQLException {
+      DbScheduler.admit ();
+      try{
+         Connection replica = this._reads.route (ownData);
+         if (replica != null){
+            try{
+               return executeQueryAndReturnResult (replica, query);
+            }catch (SQLException e){
+               // fall back to the primary if the replica went away
+               if (!isConnectionError(e))
+                  throw e;
+               this._reads.failed (replica);
+            }//end try
+         }//end if
+         return executeQueryAndReturnResult (connection(), query);
+      }finally{
+         DbScheduler.release ();
+      }//end try
+   }//end executeReadQueryAndReturnResult
+
+   /**
+    * Method to execute several independent queries in a single round-trip.
+    * The queries are sent to the DBMS together as one multi-statement
+    * string and their result sets are read back in order, so an action that
+    * needs three lookups waits for the database once instead of three times.
+    *
+    * @param queries the input query strings, none of them depending on another
+    * @return the columns and rows of every query, in the order given
+    * @throws java.sql.SQLException when failed to execute any of the queries
+    */
+   public StoreRouter.Result[] executeQueries (String... queries) throws SQLException {
+      DbScheduler.admit ();
+      try{
+         return executeQueries (connection(), queries);
+      }finally{
+         DbScheduler.release ();
+      }//end try
+   }//end executeQueries
+
+   private static StoreRouter.Result[] executeQueries (Connection conn, String... queries) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
+      stmt.setQueryTimeout (DbScheduler.timeout ());
+      try{
+         // the driver sends every statement of the string before it waits for a reply
+         StoreRouter.Result[] results = new StoreRouter.Result[queries.length];
+         boolean rows = stmt.execute (String.join (";\n", queries));
+         for (int i = 0; i < queries.length; ++i){
+            if (!rows)
+               throw new SQLException ("Not a query: " + queries[i]);
+            results[i] = StoreRouter.Result.read (stmt.getResultSet ());
+            rows = stmt.getMoreResults ();
+         }//end for
+         return results;
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end executeQueries
+
+   private static List<List<String>> executeQueryAndReturnResult (Connection conn, String query) throws SQLException {
+      // creates a statement object
+      Statement stmt = conn.createStatement ();
+      stmt.setQueryTimeout (DbScheduler.timeout ());
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
@@ -169,6 +651,93 @@ public class Cafe {
       return result;
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to mark many unpaid orders as paid with a single set based
+    * statement, either a list of order IDs or every unpaid order received
+    * in a time window.  Settling hundreds of orders costs one round-trip.
+    * Empty drafts (no ItemStatus rows) are never settled, they are still
+    * open for PlaceOrder and left to the purge-drafts job.
+    *
+    * @param orderIds the orders to settle, or null to settle by time window
+    * @param from start of the window, inclusive
+    * @param to end of the window, exclusive
+    * @return the number of orders settled, their total amount and their IDs, comma separated
+    * @throws java.sql.SQLException when the update failed
+    */
+   public String[] settleOrders (Integer[] orderIds, Timestamp from, Timestamp to) throws SQLException {
+      DbScheduler.admit ();
+      try{
+         Connection conn = connection();
+         PreparedStatement stmt;
+         if (orderIds != null){
+            stmt = conn.prepareStatement (SETTLE_BY_LIST);
+            stmt.setArray (1, conn.createArrayOf ("integer", orderIds));
+         }else{
+            stmt = conn.prepareStatement (SETTLE_BY_WINDOW);
+            stmt.setTimestamp (1, from);
+            stmt.setTimestamp (2, to);
+         }//end if
+         stmt.setQueryTimeout (DbScheduler.timeout ());
+         try{
+            ResultSet rs = stmt.executeQuery ();
+            rs.next ();
+            this._reads.wrote (conn);
+            this.maintenance.changed ("orders", rs.getLong (1));
+            return new String[] { rs.getString (1), String.format ("%.2f", rs.getDouble (2)), rs.getString (3) };
+         }finally{
+            stmt.close ();
+         }//end try
+      }finally{
+         DbScheduler.release ();
+      }//end try
+   }//end settleOrders
+
+   /**
+    * Records a menu, user or payment change made by the logged in user (or
+    * by a script) in the audit log.  Returns at once, the log is written in
+    * the background.
+    *
+    * @param action one of the AuditLog action codes
+    * @param orderid the order changed, or 0
+    * @param subject the item name or login changed
+    * @param detail the change itself, never a password
+    */
+   public void audit (int action, int orderid, String subject, String detail) {
+      if (this._audit != null)
+         this._audit.record (this.user_login == null ? "script" : this.user_login, action, orderid, subject, detail);
+   }//end audit
+
+   /**
+    * Remembers a login whose password the database just accepted, so it can
+    * sign in again while the database is unreachable.  Only a salted hash is
+    * kept, in memory, for the life of this process.
+    */
+   public void rememberSignIn (String login, String password) {
+      byte[] salt = new byte[16];
+      this._random.nextBytes(salt);
+      this._signins.put(login.trim(), new byte[][] { salt, hash(salt, password) });
+   }//end rememberSignIn
+
+   /**
+    * @return true if the login signed in online earlier in this process with
+    * the same password
+    */
+   public boolean checkOfflineSignIn (String login, String password) {
+      byte[][] entry = this._signins.get(login.trim());
+      return entry != null && MessageDigest.isEqual(entry[1], hash(entry[0], password));
+   }//end checkOfflineSignIn
+
+   private static byte[] hash (byte[] salt, String password) {
+      try {
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         digest.update(salt);
+         return digest.digest(password.getBytes("UTF-8"));
+      } catch (Exception e) {
+         // SHA-256 and UTF-8 are always available
+         throw new IllegalStateException(e);
+      }
+   }//end hash
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -178,20 +747,26 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+      DbScheduler.admit ();
+      try{
+          // creates a statement object
+          Statement stmt = connection().createStatement ();
+          stmt.setQueryTimeout (DbScheduler.timeout ());
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
 
-       int rowCount = 0;
+          int rowCount = 0;
 
-       // iterates through the result set and count number of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+          // iterates through the result set and count number of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          stmt.close ();
+          return rowCount;
+      }finally{
+         DbScheduler.release ();
+      }//end try
    }
 
    /**
@@ -204,7 +779,8 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+	Statement stmt = connection().createStatement ();
+	stmt.setQueryTimeout (DbScheduler.timeout ());
 
 	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
 	if (rs.next())
@@ -212,10 +788,83 @@ public class Cafe {
 	return -1;
    }
 
+   /**
+    * Method to return the in-memory menu index.  The index is rebuilt from
+    * the Menu table when it was invalidated by a menu change or has grown
+    * older than MENU_REFRESH_MS.
+    *
+    * @return the current menu index
+    * @throws java.sql.SQLException when failed to read the menu
+    */
+   public MenuIndex getMenuIndex() throws SQLException {
+      MenuIndex index = this._menuIndex;
+      // offline, the last menu seen is the best there is
+      if (index != null && isOffline())
+         return index;
+      if (index == null || System.currentTimeMillis() - index.builtAt() > MENU_REFRESH_MS){
+         index = new MenuIndex(executeReadQueryAndReturnResult(ALL_MENU, true));
+         this._menuIndex = index;
+      }//end if
+      return index;
+   }//end getMenuIndex
+
+   /**
+    * Method to install a menu index read on another connection, by the
+    * startup warmer.  An index that is already loaded is kept.
+    *
+    * @param menu the rows of the Menu table
+    */
+   public void primeMenuIndex(List<List<String>> menu){
+      if (this._menuIndex == null)
+         this._menuIndex = new MenuIndex(menu);
+   }//end primeMenuIndex
+
+   /**
+    * Method to drop the menu index after the Menu table was changed.
+    */
+   public void invalidateMenu(){
+      this._menuIndex = null;
+   }//end invalidateMenu
+
+   /**
+    * Method to open one more physical connection to the same database, for
+    * background work that must not interleave with the statements of the
+    * interactive session on _connection.
+    *
+    * @return a new connection, the caller closes it
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection() throws SQLException {
+      return openConnection(this._url);
+   }//end openConnection
+
+   /**
+    * Method to open a physical connection to another database, such as a
+    * read replica, with the same user and password.
+    *
+    * @param url the JDBC URL of the database
+    * @return a new connection, the caller closes it
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection(String url) throws SQLException {
+      return DriverManager.getConnection(url, this._user, this._passwd);
+   }//end openConnection
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      this.popularity.stop();
+      this.maintenance.stop();
+      this._reads.close();
+      this.stores.close();
+      if (this.journal != null){
+         if (this.journal.pending() > 0)
+            System.out.println(String.format("%d offline order(s) are still journaled and will be sent on the next start.",this.journal.pending()));
+         this.journal.stop();
+      }//end if
+      if (this._audit != null)
+         this._audit.stop();
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -231,31 +880,49 @@ public class Cafe {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      //with -f <script> the operations in the script are run headless instead of the menus
+      boolean headless = args.length == 5 && args[3].equals("-f");
+      //--warmup only connects, warms the caches and reports startup times (class-data-sharing training run)
+      boolean warmup = args.length == 4 && args[3].equals("--warmup");
+      if (args.length != 3 && !headless && !warmup) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Cafe.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [-f <script> | --warmup]");
          return;
       }//end if
 
-      Greeting();
+      // instantiate the Cafe object and create a physical connection in the
+      // background, while the greeting and the main menu are shown
+      String dbname = args[0];
+      String dbport = args[1];
+      String user = args[2];
+      String pwd = "123";
+      CompletableFuture<Cafe> booting = Startup.boot (dbname, dbport, user, pwd);
+
+      if (!headless && !warmup)
+         Greeting();
 
       Cafe esql = null;
+      int status = 0;
       try{
 
-         // use postgres JDBC driver.
-
-          Class.forName("org.postgresql.Driver").newInstance();
+         if (warmup) {
+            esql = Startup.ready(booting);
+            Startup.awaitWarm();
+            System.out.println("Startup: " + Startup.report());
+            return;
+         }//end if
 
-         // instantiate the Cafe object and creates a physical
-         // connection.
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         String pwd = "123";
-         esql = new Cafe (dbname, dbport, user, pwd);
+         if (headless) {
+            esql = Startup.ready(booting);
+            if (esql.isOffline())
+               throw new SQLException("Scripts need the database, nothing was run");
+            if (ScriptRunner.run(esql, args[4]) > 0)
+               status = 1;
+            return;
+         }//end if
 
          boolean keepon = true;
          while(keepon) {
@@ -266,7 +933,11 @@ public class Cafe {
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
             String authorisedUser = null;
-            switch (readChoice()){
+            int choice = readChoice();
+            // the connection was being set up while the menu waited for input
+            if (esql == null)
+               esql = Startup.ready(booting);
+            switch (choice){
                case 1: CreateUser(esql); break;
                case 2: authorisedUser = LogIn(esql); break;
                case 9: keepon = false; break;
@@ -275,6 +946,12 @@ public class Cafe {
             if (authorisedUser != null) {
               boolean usermenu = true;
               while(usermenu) {
+              //an offline sign in is only good until the database is back
+              if(esql.unverified && !esql.isOffline()) {
+                  System.out.println("Database is back online, please log in again.\n");
+                  esql.unverified = false;
+                  break;
+              }
               if(esql.user_type.compareTo("Manager") == 0)
                 System.out.println("MAIN MENU (MANAGER)");
               else if(esql.user_type.compareTo("Employee") == 0)
@@ -291,16 +968,30 @@ public class Cafe {
                 System.out.println("5. Browse Order History");
                 if(esql.user_type.compareTo("Manager") == 0 || esql.user_type.compareTo("Employee") == 0)
                     System.out.println("6. Mark Order as Paid");
+                if(esql.user_type.compareTo("Manager") == 0)
+                    System.out.println("7. Sales Reports");
+                if(esql.user_type.compareTo("Manager") == 0 || esql.user_type.compareTo("Employee") == 0)
+                    System.out.println("8. Find Customer");
+                if(esql.user_type.compareTo("Manager") == 0)
+                    System.out.println("10. Maintenance Status");
+                if(esql.user_type.compareTo("Manager") == 0)
+                    System.out.println("11. Export Order History");
                 System.out.println(".........................");
                 System.out.println("9. Log out");
+                //orders and payments are admitted ahead of browsing, reports last
+                DbScheduler.use(DbScheduler.BROWSE);
                 switch (readChoice()){
                    case 1: Menu(esql); break;
                    case 2: UpdateProfile(esql); break;
-                   case 3: PlaceOrder(esql); break;
-                   case 4: UpdateOrder(esql); break;
+                   case 3: DbScheduler.use(DbScheduler.CHECKOUT); PlaceOrder(esql); break;
+                   case 4: DbScheduler.use(DbScheduler.CHECKOUT); UpdateOrder(esql); break;
                    case 5: BrowseOrders(esql); break;
-                   case 6: MarkAsPaid(esql); break;
+                   case 6: DbScheduler.use(DbScheduler.CHECKOUT); MarkAsPaid(esql); break;
+                   case 7: DbScheduler.use(DbScheduler.REPORT); Reports(esql); break;
+                   case 8: FindCustomer(esql); break;
                    case 9: usermenu = false; break;
+                   case 10: MaintenanceStatus(esql); break;
+                   case 11: DbScheduler.use(DbScheduler.REPORT); ExportOrders(esql); break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
               }
@@ -308,6 +999,7 @@ public class Cafe {
          }//end while
       }catch(Exception e) {
          System.err.println (e.getMessage ());
+         status = 1;
       }finally{
          // make sure to cleanup the created table and close the connection.
          try{
@@ -320,6 +1012,8 @@ public class Cafe {
             // ignored.
          }//end try
       }//end try
+      if (headless && status != 0)
+         System.exit(status);
    }//end main
 
    public static void Greeting(){
@@ -367,7 +1061,7 @@ public class Cafe {
 
 				 String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
 
-         esql.executeUpdate(query);
+         esql.executeGlobalUpdate(query);
          System.out.println ("User successfully created!\n");
 
 
@@ -388,13 +1082,29 @@ public class Cafe {
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-         List<List<String>> temp = esql.executeQueryAndReturnResult(String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password));
-	 if (userNum > 0)
+         //offline only logins that signed in online since start up are accepted, and only get customer rights to take orders
+         if (esql.isOffline()){
+            if (!esql.checkOfflineSignIn(login, password)){
+               System.out.println("Database unavailable: only logins that signed in since the program started can sign in offline.\n");
+               return null;
+            }
+            System.out.println("Database unavailable: signed in offline, only new orders can be taken.\n");
+            esql.user_type = "Customer";
+            esql.user_login = login.trim();
+            esql.unverified = true;
+            return login;
+         }
+
+         //one query both checks the credentials and loads the user
+         List<List<String>> temp = esql.executeQueryAndReturnResult(String.format(LOG_IN, login, password));
+	 if (temp.size() == 0){
+        System.out.println("Invalid login or password.\n");
+        return null;
+     }
         //public member
         esql.user_type = temp.get(0).get(4).trim();
         esql.user_login = temp.get(0).get(0).trim();
+        esql.rememberSignIn(login, password);
         System.out.println();
 		return login;
       }catch(Exception e){
@@ -427,7 +1137,7 @@ public class Cafe {
                           String itemname = in.readLine();
 
                           //check if item already exists
-                          if (esql.executeQuery(String.format("SELECT * FROM Menu M WHERE M.itemname = '%s'",itemname)) > 0){
+                          if (esql.executeQuery(String.format(MENU_ITEM,itemname)) > 0){
                           System.out.println("Item already exists.\n");
                           return;
                           }
@@ -445,14 +1155,16 @@ public class Cafe {
                           System.out.print("\timageurl: ");
                           String imageurl = in.readLine();
 
-                          esql.executeUpdate(String.format("Insert Into Menu (itemname, type, price, description, imageurl )VALUES ('%s','%s','%s','%s','%s')",itemname,type,price,description,imageurl));
+                          esql.executeGlobalUpdate(String.format("Insert Into Menu (itemname, type, price, description, imageurl )VALUES ('%s','%s','%s','%s','%s')",itemname,type,price,description,imageurl));
+                          esql.audit(AuditLog.MENU_ADD, 0, itemname, String.format("type %s, price %s",type,price));
+                          esql.invalidateMenu();
                             System.out.println("Add Successful\n");
                           break;
                        case 2:
                            //Update an item
                            System.out.print("\tSelect itemname to update: ");
                            String item_update = in.readLine();
-                           String query2 = String.format("SELECT * FROM Menu M WHERE M.itemname = '%s'",item_update);
+                           String query2 = String.format(MENU_ITEM,item_update);
                            List<List<String>> update = esql.executeQueryAndReturnResult(query2);
 
                            //check if item name exists
@@ -478,7 +1190,8 @@ public class Cafe {
                              System.out.print("\tNew itemname: ");
                              String Uitemname = in.readLine();
 
-                             esql.executeUpdate(String.format("Update Menu SET itemname = '%s' Where itemname = '%s'",Uitemname, item_update));
+                             esql.executeGlobalUpdate(String.format("Update Menu SET itemname = '%s' Where itemname = '%s'",Uitemname, item_update));
+                             esql.audit(AuditLog.MENU_UPDATE, 0, item_update, String.format("itemname: %s -> %s",update.get(0).get(0).trim(),Uitemname));
                              System.out.println("Update Successful.\n");
                              break;
 
@@ -487,7 +1200,8 @@ public class Cafe {
                              System.out.print("\tNew type: ");
                              String Utype = in.readLine();
 
-                             esql.executeUpdate(String.format("Update Menu SET type = '%s' Where itemname = '%s'",Utype, item_update));
+                             esql.executeGlobalUpdate(String.format("Update Menu SET type = '%s' Where itemname = '%s'",Utype, item_update));
+                             esql.audit(AuditLog.MENU_UPDATE, 0, item_update, String.format("type: %s -> %s",update.get(0).get(1).trim(),Utype));
                              System.out.println("Update Successful.\n");
                              break;
 
@@ -496,7 +1210,8 @@ public class Cafe {
                              System.out.print("\tNew price: ");
                              String Uprice = in.readLine();
 
-                             esql.executeUpdate(String.format("Update Menu SET price = '%s' Where itemname = '%s'",Uprice, item_update));
+                             esql.executeGlobalUpdate(String.format(SET_MENU_PRICE,Uprice, item_update));
+                             esql.audit(AuditLog.MENU_UPDATE, 0, item_update, String.format("price: %s -> %s",update.get(0).get(2).trim(),Uprice));
                              System.out.println("Update Successful.\n");
                              break;
 
@@ -505,7 +1220,8 @@ public class Cafe {
                              System.out.print("\tNew description: ");
                              String Udescription = in.readLine();
 
-                             esql.executeUpdate(String.format("Update Menu SET description = '%s' Where itemname = '%s'",Udescription, item_update));
+                             esql.executeGlobalUpdate(String.format("Update Menu SET description = '%s' Where itemname = '%s'",Udescription, item_update));
+                             esql.audit(AuditLog.MENU_UPDATE, 0, item_update, String.format("description: %s -> %s",update.get(0).get(3).trim(),Udescription));
                              System.out.println("Update Successful.\n");
                              break;
 
@@ -514,13 +1230,15 @@ public class Cafe {
                              System.out.print("\tNew imageurl: ");
                              String Uimageurl = in.readLine();
 
-                             esql.executeUpdate(String.format("Update Menu SET imageurl = '%s' Where itemname = '%s'",Uimageurl, item_update));
+                             esql.executeGlobalUpdate(String.format("Update Menu SET imageurl = '%s' Where itemname = '%s'",Uimageurl, item_update));
+                             esql.audit(AuditLog.MENU_UPDATE, 0, item_update, String.format("imageurl: %s -> %s",update.get(0).get(4).trim(),Uimageurl));
                              System.out.println("Update Successful.\n");
                              break;
 
                              //do nothing
                              case 6:
                              break;}
+                           esql.invalidateMenu();
                            }
                            break;
                        case 3:
@@ -528,7 +1246,7 @@ public class Cafe {
                           System.out.print("\tSelect itemname to delete: ");
                           String Ditemname = in.readLine();
 
-                          List<List<String>> delete = esql.executeQueryAndReturnResult(String.format("Select * From Menu Where itemname = '%s'",Ditemname));
+                          List<List<String>> delete = esql.executeQueryAndReturnResult(String.format(MENU_ITEM,Ditemname));
 
                             //check if itemname is valid
                           if (delete.size() == 0){
@@ -536,7 +1254,9 @@ public class Cafe {
                           return;
                           }
                           else{
-                           esql.executeUpdate(String.format("Delete from Menu Where itemname = '%s'",Ditemname));
+                           esql.executeGlobalUpdate(String.format(DELETE_MENU_ITEM,Ditemname));
+                           esql.audit(AuditLog.MENU_DELETE, 0, Ditemname, String.format("type %s, price %s",delete.get(0).get(1).trim(),delete.get(0).get(2).trim()));
+                           esql.invalidateMenu();
                            System.out.println("Delete Successful.\n");
                            }
 
@@ -547,32 +1267,17 @@ public class Cafe {
                          System.out.print("\tSearch by name or type: ");
                          String search2 = in.readLine();
 
-                         //search by type or itemname
-                         String query11 = String.format("SELECT * FROM Menu M WHERE M.type = '%s'",search2);
-                         int qt = 0;
-                         String query22 = String.format("SELECT * FROM Menu M WHERE M.itemname = '%s'",search2);
-                         int qn = 0;
-
-                         //query by type
-                         qt = esql.executeQuery(query11);
-
-                         //check if either of the two queries are valid
-                         if (qt == 0){
-                            //query by name since query by type is empty
-                            qn = esql.executeQuery(query22);
-                            if (qn == 0){
-                                System.out.println("No results found.");
-                                return;
-                            }
-                            else esql.executeQueryAndPrintResult(String.format("SELECT * FROM Menu M WHERE M.itemname = '%s'",search2));
-                            }
-                            else esql.executeQueryAndPrintResult(String.format("SELECT * FROM Menu M WHERE M.type = '%s'",search2));
-                            System.out.println();
+                         //ranked prefix, substring and typo tolerant search over name, type and description
+                         if (MenuIndex.print(esql.getMenuIndex().search(search2)) == 0){
+                             System.out.println("No results found.");
+                             return;
+                         }
+                         System.out.println();
                            break;
 
                        case 5:
                            //Print whole menu
-                           esql.executeQueryAndPrintResult("Select * From Menu");
+                           esql.executeReadQueryAndPrintResult(ALL_MENU, true);
                            System.out.println();
                            break;
                        case 6:
@@ -591,32 +1296,17 @@ public class Cafe {
          System.out.print("\tSearch by name or type: ");
          String search = in.readLine();
 
-         //search by type or itemname
-         String query1 = String.format("SELECT * FROM Menu M WHERE M.type = '%s'",search);
-         int qt = 0;
-         String query2 = String.format("SELECT * FROM Menu M WHERE M.itemname = '%s'",search);
-         int qn = 0;
-
-         //check if queried by type first
-         qt = esql.executeQuery(query1);
-
-         //check if the queries are valid
-         if (qt == 0){
-            //query by name
-            qn = esql.executeQuery(query2);
-            if (qn == 0){
-                System.out.println("No results found.\n");
-                return;
-            }
-            else esql.executeQueryAndPrintResult(String.format("SELECT * FROM Menu M WHERE M.itemname = '%s'",search));
-            }
-            else esql.executeQueryAndPrintResult(String.format("SELECT * FROM Menu M WHERE M.type = '%s'",search));
-            System.out.println();
+         //ranked prefix, substring and typo tolerant search over name, type and description
+         if (MenuIndex.print(esql.getMenuIndex().search(search)) == 0){
+             System.out.println("No results found.\n");
+             return;
+         }
+         System.out.println();
       break;
 
       case 2:
       //Print whole menu
-      esql.executeQueryAndPrintResult("Select * From Menu");
+      esql.executeReadQueryAndPrintResult(ALL_MENU, false);
       System.out.println();
       break;
 
@@ -638,9 +1328,13 @@ public class Cafe {
       String users_login = in.readLine();
       List<List<String>> user_change = esql.executeQueryAndReturnResult(String.format("Select * From Users Where login = '%s'",users_login));
 
-      //check if user exists
+      //check if user exists, and offer the closest logins or phone numbers if not
       if(user_change.size() == 0){
-          System.out.println("User not Found.\n");
+          //one lookup, the printed row count tells whether anything came close
+          System.out.println("User not Found. Did you mean:");
+          if(esql.executeQueryAndPrintResult(customerLookupQuery(users_login)) == 0)
+              System.out.println("No similar logins or phone numbers.");
+          System.out.println();
           return;
       }
 
@@ -659,7 +1353,7 @@ public class Cafe {
               case 1:
               System.out.print("new phonenum: ");
               String phonenum = in.readLine();
-              esql.executeUpdate(String.format("Update Users Set phonenum = '%s' Where login = '%s'",phonenum,users_login));
+              esql.executeGlobalUpdate(String.format("Update Users Set phonenum = '%s' Where login = '%s'",phonenum,users_login));
               System.out.println("Update Successful.\n");
               break;
 
@@ -676,7 +1370,8 @@ public class Cafe {
               return;
               }
 
-              esql.executeUpdate(String.format("Update Users Set password = '%s' Where login = '%s'",password,users_login));
+              esql.executeGlobalUpdate(String.format("Update Users Set password = '%s' Where login = '%s'",password,users_login));
+              esql.audit(AuditLog.USER_PASSWORD, 0, users_login, "password changed");
               System.out.println("Update Successful.\n");
               break;
 
@@ -684,14 +1379,14 @@ public class Cafe {
               case 3:
               System.out.print("new favitems: ");
               String favItems = in.readLine();
-              esql.executeUpdate(String.format("Update Users Set favItems= '%s' Where login = '%s'",favItems,users_login));
-              System.out.println("Update Successful.\n");
+              SetFavorites(esql,users_login,favItems);
               break;
 
               case 4:
               System.out.print("new type: ");
               String type = in.readLine();
-              esql.executeUpdate(String.format("Update Users Set type= '%s' Where login = '%s'",type,users_login));
+              esql.executeGlobalUpdate(String.format("Update Users Set type= '%s' Where login = '%s'",type,users_login));
+              esql.audit(AuditLog.USER_TYPE, 0, users_login, String.format("type: %s -> %s",user_change.get(0).get(4).trim(),type));
               System.out.println("Update Successful.\n");
               break;
 
@@ -716,7 +1411,7 @@ public class Cafe {
               case 1:
               System.out.print("new phonenum: ");
               String phonenum = in.readLine();
-              esql.executeUpdate(String.format("Update Users Set phonenum = '%s' Where login = '%s'",phonenum,esql.user_login));
+              esql.executeGlobalUpdate(String.format("Update Users Set phonenum = '%s' Where login = '%s'",phonenum,esql.user_login));
               System.out.println("Update Successful.\n");
               break;
 
@@ -733,7 +1428,8 @@ public class Cafe {
               return;
               }
 
-              esql.executeUpdate(String.format("Update Users Set password = '%s' Where login = '%s'",password,esql.user_login));
+              esql.executeGlobalUpdate(String.format("Update Users Set password = '%s' Where login = '%s'",password,esql.user_login));
+              esql.audit(AuditLog.USER_PASSWORD, 0, esql.user_login, "password changed");
               System.out.println("Update Successful.\n");
               break;
 
@@ -741,8 +1437,7 @@ public class Cafe {
               case 3:
               System.out.print("new favitems: ");
               String favItems = in.readLine();
-              esql.executeUpdate(String.format("Update Users Set favItems= '%s' Where login = '%s'",favItems,esql.user_login));
-              System.out.println("Update Successful.\n");
+              SetFavorites(esql,esql.user_login,favItems);
               break;
 
               //leave updateProfile
@@ -759,46 +1454,68 @@ public class Cafe {
   }
 
   public static void PlaceOrder(Cafe esql){
+  if (esql.isOffline() && esql.journal != null){
+      OfflineOrder(esql, -1);
+      return;
+  }
   try
       {
       //add up the total value of order
 
+      //the draft may have been purged, canceled or settled since this session last used it
+      if(esql.current_order != null && esql.executeQuery(String.format(OPEN_ORDER,esql.current_order)) == 0)
+            esql.current_order = null;
+
       if(esql.current_order == null){
-            List<List<String>> empty_order = esql.executeQueryAndReturnResult(String.format("Select * From Orders where login = '%s' and Total = '0.0'",esql.user_login));
+            List<List<String>> empty_order = esql.executeQueryAndReturnResult(String.format(DRAFT_ORDER,esql.user_login));
             if(empty_order.size() == 0){
                 //create an empty order, so use that as order use trigger to fill in other values
-                esql.executeUpdate(String.format("Insert Into Orders(login, paid) VALUES ('%s','f')",esql.user_login));
-                empty_order = esql.executeQueryAndReturnResult(String.format("Select * From Orders where login = '%s' and Total = '0.0'",esql.user_login));
+                esql.executeUpdate(String.format(NEW_ORDER,esql.user_login));
+                empty_order = esql.executeQueryAndReturnResult(String.format(DRAFT_ORDER,esql.user_login));
                 esql.current_order = empty_order.get(0).get(0);
              }
             else{
             //empty order already exists, so use that as current order
             esql.current_order = empty_order.get(0).get(0);
-            esql.executeUpdate("Update orders set timestamprecieved = 'Now()'");
+            esql.executeUpdate(String.format(TOUCH_ORDER,esql.current_order));
                 }
       }
 
-      List<List<String>> Oquery = esql.executeQueryAndReturnResult(String.format("Select * From Orders Where orderid = '%s'",esql.current_order));
+      //the current total is fetched together with the item lookup of every change
+      List<List<String>> Oquery;
 
-       //Print whole menu
-       esql.executeQueryAndPrintResult("Select * From Menu");
+       //Print whole menu, what is selling right now first
+       MenuIndex.print(esql.popularity.trending(esql.getMenuIndex().items()));
        System.out.println();
 
       while(true){
-          //get new total each time
-          Oquery = esql.executeQueryAndReturnResult(String.format("Select * From Orders Where orderid = '%s'",esql.current_order));
-
             //print user menu
           System.out.println("---------");
           System.out.println("1. Add to Order");
           System.out.println("2. Delete from Order");
           System.out.println("3. Place Order");
           System.out.println("4. Quit");
-          switch(readChoice()){
+          System.out.println("5. Add my favorites");
+          System.out.println("6. Repeat my last order");
+          int choice = readChoice();
+          switch(choice){
           case 1:
                System.out.print("\titemname to add: ");
                String to_add = in.readLine();
-               List<List<String>> Mquery = esql.executeQueryAndReturnResult(String.format("Select * From Menu Where itemname = '%s'",to_add));
+
+               //get new total and the item in one round-trip
+               StoreRouter.Result[] lookup = esql.executeQueries(
+                   String.format(ORDER_BY_ID,esql.current_order),
+                   String.format(MENU_ITEM,to_add));
+               Oquery = lookup[0].rows;
+               List<List<String>> Mquery = lookup[1].rows;
+
+               //the draft was purged meanwhile
+               if (Oquery.size() == 0){
+                System.out.println("Order is no longer open, please start a new order.\n");
+                esql.current_order = null;
+                return;
+               }
 
                //check if user inputs valid itemname
                if (Mquery.size() == 0){
@@ -806,19 +1523,19 @@ public class Cafe {
                 return;
                }
 
-               //insert item status
-               esql.executeUpdate(String.format("insert into ItemStatus (orderid,itemName,lastUpdated,status,comments) Values ('%s','%s',Now(),'','')",esql.current_order,to_add));
-
                float price = Float.parseFloat(Mquery.get(0).get(2).trim());
                float total = Float.parseFloat(Oquery.get(0).get(4));
 
                String new_total  = Float.toString(total+price);
 
-               //update the total price in orders
-               esql.executeUpdate(String.format("Update orders set total = '%s' where orderid = '%s' ",new_total,esql.current_order));
+               //insert item status and update the total price in orders
+               esql.executeTransaction(
+                   String.format(ADD_ITEM,esql.current_order,to_add),
+                   String.format(SET_TOTAL,new_total,esql.current_order));
+               esql.popularity.record(to_add,1);
 
                //print all items on order
-               esql.executeQueryAndPrintResult(String.format("select * from itemstatus where orderid in (select orderid from orders where orderid = '%s')",esql.current_order));
+               esql.executeQueryAndPrintResult(String.format(ORDER_ITEMS,esql.current_order));
 
                //print total price
                System.out.println("Total is: "+new_total+"\n");
@@ -830,8 +1547,21 @@ public class Cafe {
              System.out.print("\titemname to add: ");
              String to_remove = in.readLine();
 
-             Mquery = esql.executeQueryAndReturnResult(String.format("Select * From Menu Where itemname = '%s'",to_remove));
-             List<List<String>> Dquery = esql.executeQueryAndReturnResult(String.format("Select * From ItemStatus Where itemname = '%s' and orderid = '%s'",to_remove,esql.current_order));
+             //get new total, the item and the order line in one round-trip
+             lookup = esql.executeQueries(
+                 String.format(ORDER_BY_ID,esql.current_order),
+                 String.format(MENU_ITEM,to_remove),
+                 String.format(ORDER_LINE,to_remove,esql.current_order));
+             Oquery = lookup[0].rows;
+             Mquery = lookup[1].rows;
+             List<List<String>> Dquery = lookup[2].rows;
+
+            //the draft was purged meanwhile
+            if (Oquery.size() == 0){
+                 System.out.println("Order is no longer open, please start a new order.\n");
+                 esql.current_order = null;
+                 return;
+            }
 
             //check if user inputs valid itemname
             if (Mquery.size() == 0){
@@ -850,15 +1580,15 @@ public class Cafe {
 
          new_total  = Float.toString(total-price);
 
-         //delete the item_status
-         esql.executeUpdate(String.format("Delete from ItemStatus where itemname = '%s' and orderId = '%s'",to_remove,esql.current_order));
-
-         //update the total price in orders
-         esql.executeUpdate(String.format("Update orders set total = '%s' where orderid = '%s' ",new_total,esql.current_order));
+         //delete the item_status and update the total price in orders
+         esql.executeTransaction(
+             String.format(REMOVE_ITEM,to_remove,esql.current_order),
+             String.format(SET_TOTAL,new_total,esql.current_order));
+         esql.popularity.record(to_remove,-1);
 
 
          //print all items on order
-         esql.executeQueryAndPrintResult(String.format("select * from itemstatus where orderid in (select orderid from orders where orderid = '%s')",esql.current_order));
+         esql.executeQueryAndPrintResult(String.format(ORDER_ITEMS,esql.current_order));
 
          //print total price
          System.out.println("Total is: "+new_total+"\n");
@@ -868,6 +1598,7 @@ public class Cafe {
           case 3:
               System.out.println(String.format("Order#%s placed!\n",esql.current_order));
               esql.current_order = null;
+              Startup.orderPlaced();
               return;
         //      update orders
 
@@ -875,11 +1606,127 @@ public class Cafe {
           case 4:
           return;
 
+          //add every favorite item that is not on the order yet, built server side in one statement
+          case 5:
+          case 6:
+             String source;
+             if (choice == 5)
+                 source = String.format(FAVORITE_ITEMS,esql.user_login);
+             else
+                 source = String.format(LAST_ORDER_ITEMS,esql.user_login,esql.current_order);
+
+             List<List<String>> added = esql.executeUpdateAndReturnResult(String.format(ADD_ITEMS,esql.current_order,source));
+
+             if (added.size() == 0){
+                 System.out.println(choice == 5 ? "No favorites to add.\n" : "No previous order to repeat.\n");
+                 break;
+             }
+             for (List<String> item : added)
+                 esql.popularity.record(item.get(0),1);
+
+             //print all items on order and the total price, read in one round-trip
+             lookup = esql.executeQueries(
+                 String.format(ORDER_ITEMS,esql.current_order),
+                 String.format(ORDER_BY_ID,esql.current_order));
+             lookup[0].print();
+             System.out.println("Total is: "+lookup[1].rows.get(0).get(4)+"\n");
+          break;
+
           default : System.out.println("Unrecognized choice!\n"); break;
           }
         //   Insert into Orders (login,paid,timestamprecieved,total) Values ('Bob','f',Now(),2.0)
         }
       }
+ catch(SQLException e){
+ System.err.println (e.getMessage ());
+ //the connection dropped or the database is too busy, keep taking the order offline instead of losing it
+ if (isUnavailable(e) && esql.journal != null){
+     String why = "Database busy";
+     if (isConnectionError(e)){
+         esql.goOffline();
+         why = "Connection lost";
+     }
+     System.out.println(esql.current_order == null ? String.format("%s, continuing offline.\n",why) : String.format("%s, continuing Order#%s offline.\n",why,esql.current_order));
+     int continues = esql.current_order == null ? -1 : Integer.parseInt(esql.current_order.trim());
+     esql.current_order = null;
+     OfflineOrder(esql, continues);
+ }
+ }
+ catch(Exception e){
+ System.err.println (e.getMessage ());
+ }
+  }
+
+  /*
+   * Takes an order while the database is unreachable. Items are checked
+   * against the last menu index that was loaded, and the finished order is
+   * appended to the local journal, which replays it once the database is back.
+   * @param continues order the items are added to on replay, or -1 for a new one
+   **/
+  public static void OfflineOrder(Cafe esql, int continues){
+  try
+      {
+      MenuIndex menu = null;
+      try{
+          menu = esql.getMenuIndex();
+          MenuIndex.print(esql.popularity.trending(menu.items()));
+          System.out.println();
+      }catch(SQLException e){
+          System.out.println("Menu unavailable offline, items are checked when the order is sent.\n");
+      }
+
+      List<String> items = new ArrayList<String>();
+      while(true){
+          System.out.println("--------- (offline)");
+          System.out.println("1. Add to Order");
+          System.out.println("2. Delete from Order");
+          System.out.println("3. Place Order");
+          System.out.println("4. Quit");
+          switch(readChoice()){
+          case 1:
+               System.out.print("\titemname to add: ");
+               String to_add = in.readLine().trim();
+               if (menu != null && menu.get(to_add) == null){
+                   System.out.println("Itemname does not exist.\n");
+                   break;
+               }
+               if (items.contains(to_add)){
+                   System.out.println("Item is already on Order.\n");
+                   break;
+               }
+               items.add(to_add);
+               esql.popularity.record(to_add,1);
+               System.out.println("Items: "+items+"\n");
+          break;
+
+          case 2:
+               System.out.print("\titemname to remove: ");
+               String to_remove = in.readLine().trim();
+               if (!items.remove(to_remove)){
+                   System.out.println("Item is not on Order.\n");
+                   break;
+               }
+               esql.popularity.record(to_remove,-1);
+               System.out.println("Items: "+items+"\n");
+          break;
+
+          case 3:
+               if (items.isEmpty() && continues < 0){
+                   System.out.println("Order is empty.\n");
+                   break;
+               }
+               String id = esql.journal.append(esql.user_login, items, continues);
+               System.out.println(String.format("Order saved offline (ref %s), it will be sent when the database is back.\n",id.substring(0,8)));
+               Startup.orderPlaced();
+               return;
+
+          case 4:
+          return;
+
+          default : System.out.println("Unrecognized choice!\n"); break;
+          }
+      }
+      }
  catch(Exception e){
  System.err.println (e.getMessage ());
  }
@@ -890,11 +1737,16 @@ public class Cafe {
     {
       System.out.print("\tOrderID: ");
       String OrderId = in.readLine();
-      List<List<String>> Oquery = esql.executeQueryAndReturnResult(String.format("Select * From Orders Where orderid = '%s'",OrderId));
+
+    //the order and its items in one round-trip, the items are only shown once the order checks out
+      StoreRouter.Result[] lookup = esql.executeQueries(
+          String.format(ORDER_BY_ID,OrderId),
+          String.format(ORDER_ITEMS,OrderId));
+      List<List<String>> Oquery = lookup[0].rows;
 
     //check if order is valid
       if(Oquery.size() == 0)
-    {      System.out.println("Invalid OrderId.\n");
+    {      printMissingOrder(esql, OrderId);
           return;
     }
 
@@ -909,9 +1761,15 @@ public class Cafe {
     {      System.out.println(String.format ("Order#%s is already paid.\n",OrderId));
           return;
     }
+
+    //Check if order was canceled
+      if(Oquery.get(0).get(5).trim().compareTo("t") == 0)
+    {      System.out.println(String.format ("Order#%s is canceled.\n",OrderId));
+          return;
+    }
     //print all of the items on current order
     System.out.println(String.format("Items on order %s: ",OrderId));
-    esql.executeQueryAndPrintResult(String.format("select * from itemstatus I where I.orderid in (Select orderid from orders where orderid = %s)",OrderId));
+    lookup[1].print();
 
     //prompt the user
     System.out.println("---------");
@@ -925,7 +1783,7 @@ public class Cafe {
     case 1:
         System.out.print("\titemname to add: ");
         String to_add = in.readLine();
-        List<List<String>> Mquery = esql.executeQueryAndReturnResult(String.format("Select * From Menu Where itemname = '%s'",to_add));
+        List<List<String>> Mquery = esql.executeQueryAndReturnResult(String.format(MENU_ITEM,to_add));
 
         //check if user inputs valid itemname
         if (Mquery.size() == 0){
@@ -941,11 +1799,11 @@ public class Cafe {
         System.out.println("New total is: "+new_total);
 
 
-        //add a new item_status
-        esql.executeUpdate(String.format("insert into ItemStatus (orderid,itemName,lastUpdated,status,comments) Values ('%s','%s',Now(),'','')",OrderId,to_add));
-
-        //update the total price in orders
-        esql.executeUpdate(String.format("Update orders set total = '%s' where orderid = '%s' ",new_total,OrderId));
+        //add a new item_status and update the total price in orders
+        esql.executeTransaction(
+            String.format(ADD_ITEM,OrderId,to_add),
+            String.format(SET_TOTAL,new_total,OrderId));
+        esql.popularity.record(to_add,1);
 
         System.out.println(String.format ("Order#%s: %s successfully added.\n",OrderId,to_add));
     break;
@@ -955,8 +1813,12 @@ public class Cafe {
         System.out.print("\titemname to remove: ");
         String to_remove = in.readLine();
 
-        List<List<String>> Dquery = esql.executeQueryAndReturnResult(String.format("Select * From ItemStatus Where itemname = '%s' and orderid = '%s'",to_remove,OrderId));
-        Mquery = esql.executeQueryAndReturnResult(String.format("Select * From Menu Where itemname = '%s'",to_remove));
+        //the order line and the item in one round-trip
+        lookup = esql.executeQueries(
+            String.format(ORDER_LINE,to_remove,OrderId),
+            String.format(MENU_ITEM,to_remove));
+        List<List<String>> Dquery = lookup[0].rows;
+        Mquery = lookup[1].rows;
 
         //check if user inputs valid itemname
         if (Mquery.size() == 0){
@@ -977,16 +1839,19 @@ public class Cafe {
         System.out.println("Original total is : "+total);
         System.out.println("New total is: "+new_total);
 
-        //delete the item_status
-        esql.executeUpdate(String.format("Delete from ItemStatus where itemname = '%s' and orderId = '%s'",to_remove,OrderId));
-
-        //update the total price in orders
-        esql.executeUpdate(String.format("Update orders set total = '%s' where orderid = '%s' ",new_total,OrderId));
-
-        //If order is empty, then delete the order
-        if (Float.parseFloat(new_total) == 0){
-            System.out.println("Order is empty, now deleting order.\n");
-            esql.executeUpdate(String.format("Delete from orders where orderid = '%s'",OrderId));
+        //delete the item_status and update the total price in orders
+        esql.executeTransaction(
+            String.format(REMOVE_ITEM,to_remove,OrderId),
+            String.format(SET_TOTAL,new_total,OrderId));
+        esql.popularity.record(to_remove,-1);
+
+        //If order is empty, then cancel the order (counted, since the float total can drift from 0)
+        if (esql.executeQuery(String.format(ORDER_LINES,OrderId)) == 0){
+            System.out.println("Order is empty, now canceling order.\n");
+            if (!cancelOrder(esql, OrderId)){
+                System.out.println(String.format ("Order#%s was paid or canceled meanwhile, it was not canceled.\n",OrderId));
+                return;
+            }
             }
         System.out.println(String.format ("Order#%s: Update is Successful.\n",OrderId));
 
@@ -994,8 +1859,10 @@ public class Cafe {
 
     //cancel order
     case 3:
-        esql.executeUpdate(String.format("Delete from orders where orderid = '%s'",OrderId));
-        System.out.println(String.format ("Order#%s is now canceled.\n",OrderId));
+        if (cancelOrder(esql, OrderId))
+            System.out.println(String.format ("Order#%s is now canceled.\n",OrderId));
+        else
+            System.out.println(String.format ("Order#%s was paid or canceled meanwhile, it was not canceled.\n",OrderId));
     break;
 
     //do nothing
@@ -1009,18 +1876,34 @@ public class Cafe {
     System.err.println (e.getMessage ());
     }
   }
+  /*
+   * Cancels an order with a single row update, the maintenance reaper removes
+   * it and its items later. Its items no longer count as sold. An order paid
+   * since it was checked is left alone.
+   * @return false if the order was paid or canceled meanwhile
+   **/
+  private static boolean cancelOrder(Cafe esql, String OrderId) throws SQLException{
+    List<List<String>> cancelled = esql.executeUpdateAndReturnResult(String.format(CANCEL_ORDER,OrderId));
+    for (List<String> item : cancelled)
+        if (item.get(1) != null)
+            esql.popularity.record(item.get(1),-1);
+    if(OrderId.trim().equals(esql.current_order == null ? null : esql.current_order.trim()))
+        esql.current_order = null;
+    return cancelled.size() > 0;
+  }
+
   public static void BrowseOrders(Cafe esql){
   try{
     //print all unpaid orders within 24 hours
     if(esql.user_type.compareTo("Manager") == 0 || esql.user_type.compareTo("Employee") == 0){
     System.out.println("Viewing all unpaid orders within last 24hrs.");
-    esql.executeQueryAndPrintResult("Select * From Orders Where paid = 'f' and timestamprecieved >= NOW() - '1 day'::INTERVAL");
+    esql.executeReadQueryAndPrintResult(UNPAID_TODAY, true);
     System.out.println();}
 
     //prints the top 5 orders
     else{
     System.out.println("Viewing last 5 orders. ");
-    esql.executeQueryAndPrintResult(String.format("Select * From Orders O Where O.login in (Select U.login From Users U Where U.login = '%s') Order By timestamprecieved DESC Limit 5",esql.user_login));
+    esql.executeReadQueryAndPrintResult(String.format(LAST_ORDERS,esql.user_login), true);
     System.out.println();}
     }
       catch(Exception e){
@@ -1042,13 +1925,32 @@ public class Cafe {
             return;
         }
 
+        //settle one order, or many at close in a single statement
+        System.out.println("---------");
+        System.out.println("1. Single order");
+        System.out.println("2. Settle all unpaid orders in a time window");
+        System.out.println("3. Settle a list of orders");
+        System.out.println("4. Quit");
+        int mode = readChoice();
+        switch(mode){
+          case 1: break;
+          case 2:
+          case 3: BulkSettle(esql, mode == 3); return;
+          case 4: return;
+          default : System.out.println("Unrecognized choice!\n"); return;
+        }
+
           System.out.print("\tOrderID: ");
           String OrderId = in.readLine();
-          List<List<String>> Oquery = esql.executeQueryAndReturnResult(String.format("Select * From Orders Where orderid = '%s'",OrderId));
+          List<List<String>> Oquery = esql.executeQueryAndReturnResult(String.format(ORDER_BY_ID,OrderId));
 
         //check if order is valid
           if(Oquery.size() == 0)
-        {      System.out.println("Invalid OrderId.\n");
+        {      printMissingOrder(esql, OrderId);
+              return;
+        }
+          if(Oquery.get(0).get(5).trim().compareTo("t") == 0)
+        {      System.out.println(String.format ("Order#%s is canceled.\n",OrderId));
               return;
         }
           System.out.println(String.format ("Mark Order#%s as:\n",OrderId));
@@ -1060,13 +1962,21 @@ public class Cafe {
           switch(readChoice()){
             case 1:
             //paid
-                esql.executeUpdate(String.format("Update orders set paid = 't' where orderId = '%s'",OrderId));
+                if (esql.executeUpdateAndReturnResult(String.format(MARK_PAID,"t",OrderId)).size() == 0){
+                    System.out.println(String.format ("Order#%s was canceled or removed meanwhile, nothing changed.\n",OrderId));
+                    break;
+                }
+                esql.audit(AuditLog.ORDER_PAID, Integer.parseInt(OrderId.trim()), Oquery.get(0).get(1).trim(), String.format("total %s, was paid %s",Oquery.get(0).get(4).trim(),Oquery.get(0).get(2).trim()));
                 System.out.println(String.format ("Order#%s marked as paid.\n",OrderId));
             break;
 
             case 2:
             //unpaid
-                esql.executeUpdate(String.format("Update orders set paid = 'f' where orderId = '%s'",OrderId));
+                if (esql.executeUpdateAndReturnResult(String.format(MARK_PAID,"f",OrderId)).size() == 0){
+                    System.out.println(String.format ("Order#%s was canceled or removed meanwhile, nothing changed.\n",OrderId));
+                    break;
+                }
+                esql.audit(AuditLog.ORDER_UNPAID, Integer.parseInt(OrderId.trim()), Oquery.get(0).get(1).trim(), String.format("total %s, was paid %s",Oquery.get(0).get(4).trim(),Oquery.get(0).get(2).trim()));
                 System.out.println(String.format ("Order#%s marked as unpaid.\n",OrderId));
             break;
 
@@ -1083,6 +1993,277 @@ public class Cafe {
        }
        }
 
+  /*
+   * Bulk end of day settlement: marks the unpaid orders of a time window, or
+   * of a list of order IDs, as paid in one statement and prints the summary.
+   **/
+  private static void BulkSettle(Cafe esql, boolean byList) throws Exception{
+    String[] settled;
+    String how;
+    if(byList){
+        System.out.print("\tOrderIDs (comma separated): ");
+        List<Integer> ids = new ArrayList<Integer>();
+        for(String id : in.readLine().split(",")){
+            if(id.trim().length() == 0)
+                continue;
+            try{
+                ids.add(Integer.parseInt(id.trim()));
+            }catch(NumberFormatException e){
+                System.out.println(String.format("Invalid OrderId %s.\n",id.trim()));
+                return;
+            }
+        }
+        if(ids.isEmpty()){
+            System.out.println("No orders given.\n");
+            return;
+        }
+        settled = esql.settleOrders(ids.toArray(new Integer[0]), null, null);
+        how = "bulk settle by list";
+    }
+    else{
+        //blank means the last 24 hours
+        System.out.print("\tFrom (YYYY-MM-DD [HH:MM], blank for 24 hours ago): ");
+        String from = in.readLine().trim();
+        System.out.print("\tTo (YYYY-MM-DD [HH:MM], blank for now): ");
+        String to = in.readLine().trim();
+        long now = System.currentTimeMillis();
+        try{
+            Timestamp start = from.length() == 0 ? new Timestamp(now - 24L*60*60*1000) : parseTime(from);
+            Timestamp end = to.length() == 0 ? new Timestamp(now + 1000) : parseTime(to);
+            settled = esql.settleOrders(null, start, end);
+            how = String.format("bulk settle of %s to %s",start,end);
+        }catch(IllegalArgumentException e){
+            System.out.println("Invalid time, use YYYY-MM-DD or YYYY-MM-DD HH:MM.\n");
+            return;
+        }
+    }
+    //one audit record per settled order, so the trail can be searched by order
+    for(String id : settled[2].split(",")){
+        if(id.length() > 0)
+            esql.audit(AuditLog.ORDER_PAID, Integer.parseInt(id), "", how);
+    }
+    System.out.println(String.format("Settled %s order(s), total amount %s.\n",settled[0],settled[1]));
+  }
+
+  /*
+   * Explains why an order is not in this store's database
+   **/
+  private static void printMissingOrder(Cafe esql, String orderId){
+    try{
+        long id = Long.parseLong(orderId.trim());
+        if(id > 0 && esql.stores.enabled() && esql.stores.storeOf(id) != esql.stores.home()){
+            System.out.println(String.format("Order#%d was placed at store %d.\n",id,esql.stores.storeOf(id)));
+            return;
+        }
+    }catch(NumberFormatException e){
+        // not an order id at all
+    }
+    System.out.println("Invalid OrderId.\n");
+  }
+
+  private static Timestamp parseTime(String text){
+    if(text.matches("\\d{4}-\\d{2}-\\d{2}"))
+        text += " 00:00";
+    if(text.matches("\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}"))
+        text += ":00";
+    return Timestamp.valueOf(text);
+  }
+
+  /*
+   * Replaces a user's favorite items with a comma separated list. The list is
+   * kept in Users.favItems as typed, and every entry naming a menu item (case
+   * insensitive) becomes a FavItems row.
+   **/
+  public static void SetFavorites(Cafe esql, String login, String favItems) throws SQLException{
+    List<String> names = new ArrayList<String>();
+    for (String name : favItems.split(","))
+        if (name.trim().length() > 0)
+            names.add(name.trim().toLowerCase().replace("'", "''"));
+    String list = String.join(",", names);
+
+    int[] counts = esql.executeGlobalTransaction(
+        String.format("Update Users Set favItems= '%s' Where login = '%s'",favItems.replace("'", "''"),login),
+        String.format("Delete From FavItems Where login = '%s'",login),
+        String.format("Insert Into FavItems (login, itemName) Select Distinct '%s', M.itemName From Menu M Where lower(M.itemName::text) = ANY (string_to_array('%s', ','))",login,list));
+
+    if (counts[2] < names.size())
+        System.out.println(String.format("%d of %d items are not on the menu and were skipped.",names.size()-counts[2],names.size()));
+    System.out.println("Update Successful.\n");
+  }
+
+  /*
+   * Builds the customer lookup query for whatever staff typed at the counter.
+   * Input made of phone characters with at least 4 digits is matched against
+   * the tail of the normalized phone number, so "393-1512" finds
+   * +1(180)393-1512; anything else is a case insensitive partial (or slightly
+   * misspelled) login.  Both shapes are served by the users_* indexes in
+   * create_indexes.sql.
+   * @return query returning up to 10 rows of login, phonenum, type
+   **/
+  public static String customerLookupQuery(String text){
+    String search = text.trim().toLowerCase();
+    String digits = search.replaceAll("[^0-9]", "");
+
+    if(search.matches("[0-9+().\\- ]+") && digits.length() >= 4){
+        String reversed = new StringBuilder(digits).reverse().toString();
+        return String.format("Select login, coalesce(phonenum,'') as phonenum, type From Users Where reverse(regexp_replace(phoneNum::text, '[^0-9]', '', 'g')) LIKE '%s%%' Order By length(regexp_replace(phoneNum::text, '[^0-9]', '', 'g')), login Limit 10",reversed);
+    }
+
+    //escape quotes and LIKE wildcards typed by the user
+    String pattern = search.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_").replace("'", "''");
+    String literal = search.replace("'", "''");
+    if(search.length() < 3)
+        return String.format("Select login, coalesce(phonenum,'') as phonenum, type From Users Where lower(login::text) LIKE '%s%%' Order By login Limit 10",pattern);
+    return String.format("Select login, coalesce(phonenum,'') as phonenum, type From Users Where lower(login::text) LIKE '%%%s%%' OR lower(login::text) %% '%s' Order By lower(login::text) = '%s' DESC, lower(login::text) LIKE '%s%%' DESC, similarity(lower(login::text), '%s') DESC, login Limit 10",pattern,literal,literal,pattern,literal);
+  }
+
+  /*
+   * Staff lookup of customers by partial login or phone number
+   **/
+  public static void FindCustomer(Cafe esql){
+    try{
+      if(esql.user_type.compareTo("Manager") != 0 && esql.user_type.compareTo("Employee") != 0){
+          System.out.println("Unrecognized choice!");
+          return;
+      }
+
+      System.out.print("\tLogin or phone number: ");
+      String search = in.readLine();
+      if(search.trim().length() == 0){
+          System.out.println("No results found.\n");
+          return;
+      }
+      if(esql.executeReadQueryAndPrintResult(customerLookupQuery(search), false) == 0)
+          System.out.println("No results found.");
+      System.out.println();
+    }
+    catch(Exception e){
+    System.err.println (e.getMessage ());
+    }
+  }
+
+  /*
+   * Sales reports for managers. Everything is read from the SalesDaily,
+   * SalesHourly and SalesItem rollups that the triggers keep current, so
+   * each report touches a few dozen rows no matter how long the history is.
+   * With several stores a report covers this store or, scattered to every
+   * store's rollups and summed, all of them.
+   **/
+  public static void Reports(Cafe esql){
+    try{
+      if(esql.user_type.compareTo("Manager") != 0){
+          System.out.println("Unrecognized choice!");
+          return;
+      }
+
+      boolean all = false;
+      if(esql.stores.enabled()){
+          System.out.println(String.format("1. This store (%d)",esql.stores.home()));
+          System.out.println(String.format("2. All %d stores",esql.stores.count()));
+          all = readChoice() == 2;
+      }
+
+      System.out.println("---------");
+      System.out.println("1. Daily sales (last 14 days)");
+      System.out.println("2. Weekly sales (last 8 weeks)");
+      System.out.println("3. Top items (last 30 days)");
+      System.out.println("4. Today by hour");
+      System.out.println("5. Quit");
+      switch(readChoice()){
+        case 1:
+            if(all)
+                esql.stores.gather("Select day, orders, revenue From SalesDaily Where day > current_date - 14").sum(1).sort(0, true).print();
+            else
+                esql.executeReadQueryAndPrintResult("Select day, orders, revenue From SalesDaily Where day > current_date - 14 Order By day DESC", false);
+            System.out.println();
+        break;
+
+        case 2:
+            if(all)
+                esql.stores.gather("Select date_trunc('week', day)::date as week, sum(orders) as orders, sum(revenue) as revenue From SalesDaily Where day >= date_trunc('week', current_date)::date - 49 Group By 1").sum(1).sort(0, true).print();
+            else
+                esql.executeReadQueryAndPrintResult("Select date_trunc('week', day)::date as week, sum(orders) as orders, sum(revenue) as revenue From SalesDaily Where day >= date_trunc('week', current_date)::date - 49 Group By 1 Order By 1 DESC", false);
+            System.out.println();
+        break;
+
+        case 3:
+            //every store's full list is needed, its top 10 need not be the overall top 10
+            if(all)
+                esql.stores.gather("Select itemname, sum(quantity) as quantity, sum(revenue) as revenue From SalesItem Where day > current_date - 30 Group By itemname").sum(1).sort(2, true).sort(1, true).limit(10).print();
+            else
+                esql.executeReadQueryAndPrintResult("Select itemname, sum(quantity) as quantity, sum(revenue) as revenue From SalesItem Where day > current_date - 30 Group By itemname Order By 2 DESC, 3 DESC Limit 10", false);
+            System.out.println();
+        break;
+
+        case 4:
+            if(all)
+                esql.stores.gather("Select hour, orders, revenue From SalesHourly Where day = current_date").sum(1).sort(0, false).print();
+            else
+                esql.executeReadQueryAndPrintResult("Select hour, orders, revenue From SalesHourly Where day = current_date Order By hour", false);
+            System.out.println();
+        break;
+
+        case 5:
+        break;
+
+        default : System.out.println("Unrecognized choice!\n"); break;
+      }
+    }
+    catch(Exception e){
+    System.err.println (e.getMessage ());
+    }
+  }
+
+  /*
+   * Timings and row counts of the background maintenance jobs, for managers
+   **/
+  public static void MaintenanceStatus(Cafe esql){
+    if(esql.user_type.compareTo("Manager") != 0){
+        System.out.println("Unrecognized choice!");
+        return;
+    }
+    for (String line : esql.maintenance.report())
+        System.out.println(line);
+    System.out.println();
+    System.out.println(DbScheduler.report());
+    System.out.println();
+  }
+
+  /*
+   * Exports Orders and ItemStatus for a time window to files, for accounting
+   **/
+  public static void ExportOrders(Cafe esql){
+    try{
+      if(esql.user_type.compareTo("Manager") != 0){
+          System.out.println("Unrecognized choice!");
+          return;
+      }
+
+      System.out.print("\tDirectory (blank for export): ");
+      String dir = in.readLine().trim();
+      System.out.print("\tFrom (YYYY-MM-DD [HH:MM], blank for all history): ");
+      String from = in.readLine().trim();
+      System.out.print("\tTo (YYYY-MM-DD [HH:MM], blank for now): ");
+      String to = in.readLine().trim();
+      System.out.println("\tFormat: 1. csv  2. binary");
+      boolean binary = readChoice() == 2;
+      System.out.print("\tCompress (y/n): ");
+      boolean gzip = in.readLine().trim().toLowerCase().startsWith("y");
+
+      Timestamp start, end;
+      try{
+          start = from.length() == 0 ? null : parseTime(from);
+          end = to.length() == 0 ? null : parseTime(to);
+      }catch(IllegalArgumentException e){
+          System.out.println("Invalid time, use YYYY-MM-DD or YYYY-MM-DD HH:MM.\n");
+          return;
+      }
+      System.out.println(Exporter.run(esql, dir.length() == 0 ? "export" : dir, start, end, binary, gzip) + "\n");
+    }
+    catch(Exception e){
+    System.err.println (e.getMessage ());
+    }
+  }
 
 }//end Cafe
 
@@ -0,0 +1,185 @@
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for database work.  Every statement the process runs
+ * belongs to one of four classes, in priority order:
+ *
+ *    CHECKOUT    placing, changing and paying for orders
+ *    BROWSE      menu, profile, order history and customer lookup screens
+ *    REPORT      sales reports, exports
+ *    BACKGROUND  maintenance jobs, popularity checkpoints, cache warming
+ *
+ * Each class has a concurrency limit, a bounded wait queue, a longest wait
+ * and a statement timeout (applied with Statement.setQueryTimeout).  Work
+ * waits while its class is at its limit or while a higher class has work
+ * waiting, and is shed with SQLState 53000 when its queue is full or its
+ * wait runs out.  When checkout latency rises above -Dcafe.checkoutTargetMs
+ * (default 250) REPORT and BACKGROUND work is shed at once, so the
+ * registers keep their latency while reports and housekeeping back off.
+ *
+ * The class is per thread: an action sets it with use() and every
+ * statement the thread runs is admitted under it.  Admission is reentrant,
+ * a thread holding a permit runs nested statements without a second one.
+ *
+ */
+public class DbScheduler {
+
+   public static final int CHECKOUT = 0;
+   public static final int BROWSE = 1;
+   public static final int REPORT = 2;
+   public static final int BACKGROUND = 3;
+
+   private static final String[] NAMES = { "checkout", "browse", "report", "background" };
+
+   // per class: concurrent statements, waiting statements, longest wait, statement timeout
+   private static final int[] LIMIT = { 8, 4, 2, 1 };
+   private static final int[] QUEUE = { 64, 16, 4, 2 };
+   private static final long[] MAX_WAIT_MS = { 5000, 2000, 1000, 500 };
+   private static final int[] TIMEOUT_SECONDS = { 10, 5, 60, 120 };
+
+   private static final long CHECKOUT_TARGET_MS = Long.getLong("cafe.checkoutTargetMs", 250);
+
+   private static final ReentrantLock lock = new ReentrantLock();
+   private static final Condition changed = lock.newCondition();
+   private static final int[] active = new int[NAMES.length];
+   private static final int[] waiting = new int[NAMES.length];
+   private static final long[] admitted = new long[NAMES.length];
+   private static final long[] shed = new long[NAMES.length];
+
+   // moving average of checkout statement time, in milliseconds, and when it was last updated
+   private static volatile double checkoutMs = 0;
+   private static volatile long checkoutAt = 0;
+
+   // a checkout average older than this no longer counts as pressure
+   private static final long PRESSURE_MS = 10000;
+
+   private static final ThreadLocal<Integer> current = new ThreadLocal<Integer>() {
+      protected Integer initialValue() {
+         return BROWSE;
+      }
+   };
+
+   // nesting depth, admission time and class of the permit held by this thread
+   private static final ThreadLocal<long[]> held = new ThreadLocal<long[]>() {
+      protected long[] initialValue() {
+         return new long[3];
+      }
+   };
+
+   /**
+    * Sets the class of the statements this thread runs from now on.
+    *
+    * @param priority CHECKOUT, BROWSE, REPORT or BACKGROUND
+    */
+   public static void use(int priority) {
+      current.set(priority);
+   }
+
+   /**
+    * @return the statement timeout of this thread's class, in seconds
+    */
+   public static int timeout() {
+      return TIMEOUT_SECONDS[current.get()];
+   }
+
+   private static SQLException shed(int priority, String why) {
+      ++shed[priority];
+      return new SQLException(String.format("Database busy, %s work was shed (%s), please try again.", NAMES[priority], why), "53000");
+   }
+
+   private static boolean higherWaiting(int priority) {
+      for (int p = 0; p < priority; ++p)
+         if (waiting[p] > 0)
+            return true;
+      return false;
+   }//end higherWaiting
+
+   /**
+    * Waits for a permit to run a statement in this thread's class.  Every
+    * admit is paired with a release in a finally block.
+    *
+    * @throws java.sql.SQLException when the work is shed
+    */
+   public static void admit() throws SQLException {
+      long[] permit = held.get();
+      if (permit[0]++ > 0)
+         return;
+      int priority = current.get();
+      boolean granted = false;
+      lock.lock();
+      try {
+         if (priority >= REPORT && checkoutMs > CHECKOUT_TARGET_MS && System.currentTimeMillis() - checkoutAt < PRESSURE_MS)
+            throw shed(priority, "checkout is slow");
+         if (waiting[priority] >= QUEUE[priority])
+            throw shed(priority, "queue full");
+         ++waiting[priority];
+         try {
+            long wait = TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MS[priority]);
+            while (active[priority] >= LIMIT[priority] || higherWaiting(priority)) {
+               if (wait <= 0)
+                  throw shed(priority, "waited too long");
+               wait = changed.awaitNanos(wait);
+            }
+         } finally {
+            --waiting[priority];
+            // a lower class may have been waiting on us
+            changed.signalAll();
+         }
+         ++active[priority];
+         ++admitted[priority];
+         granted = true;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw shed(priority, "interrupted");
+      } finally {
+         // however admission failed, this thread holds no permit
+         if (!granted)
+            permit[0] = 0;
+         lock.unlock();
+      }
+      permit[1] = System.nanoTime();
+      permit[2] = priority;
+   }//end admit
+
+   /**
+    * Returns the permit taken by admit.
+    */
+   public static void release() {
+      long[] permit = held.get();
+      if (--permit[0] > 0)
+         return;
+      int priority = (int) permit[2];
+      if (priority == CHECKOUT) {
+         double millis = (System.nanoTime() - permit[1]) / 1e6;
+         checkoutMs = checkoutMs * 0.8 + millis * 0.2;
+         checkoutAt = System.currentTimeMillis();
+      }
+      lock.lock();
+      try {
+         --active[priority];
+         changed.signalAll();
+      } finally {
+         lock.unlock();
+      }
+   }//end release
+
+   /**
+    * @return one line per class with its load and counters
+    */
+   public static String report() {
+      StringBuilder report = new StringBuilder(String.format("%-12s %6s %7s %9s %6s%n", "class", "active", "waiting", "admitted", "shed"));
+      lock.lock();
+      try {
+         for (int p = 0; p < NAMES.length; ++p)
+            report.append(String.format("%-12s %6d %7d %9d %6d%n", NAMES[p], active[p], waiting[p], admitted[p], shed[p]));
+      } finally {
+         lock.unlock();
+      }
+      report.append(String.format("checkout average %.1f ms, target %d ms", checkoutMs, CHECKOUT_TARGET_MS));
+      return report.toString();
+   }//end report
+
+}//end DbScheduler
@@ -0,0 +1,273 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+
+/**
+ * Exports order history for accounting.  The orderid span of the requested
+ * time window is split into ranges, and every range of Orders and of
+ * ItemStatus is streamed by its own worker over its own connection with
+ * COPY ... TO STDOUT, straight into a file channel, optionally gzipped.  The
+ * server does the formatting, so the client only moves bytes and the export
+ * runs as fast as the disk takes them.
+ *
+ * A coordinator transaction exports its snapshot with pg_export_snapshot()
+ * and every worker adopts it with SET TRANSACTION SNAPSHOT in a REPEATABLE
+ * READ transaction, so all files show the database at the same instant and
+ * items always match their orders.
+ *
+ * Formats are csv (with a header line) and binary, the PostgreSQL binary
+ * COPY format, which is compact and reloads with COPY ... FROM ... (FORMAT
+ * binary).  A manifest.txt lists every file with its range, rows, bytes and
+ * CRC32.
+ *
+ */
+public class Exporter {
+
+   // concurrent ranges, override with -Dcafe.exportThreads=N
+   private static final int THREADS = Integer.getInteger("cafe.exportThreads", 4);
+
+   private static final int BUFFER_BYTES = 1 << 16;
+
+   /*
+    * One file to write, and what writing it produced.
+    */
+   private static class Part {
+      final String table;
+      final long low;
+      final long high;
+      final Path path;
+      long rows = 0;
+      long bytes = 0;
+      long crc = 0;
+      long millis = 0;
+
+      Part(String table, long low, long high, Path path) {
+         this.table = table;
+         this.low = low;
+         this.high = high;
+         this.path = path;
+      }
+   }//end Part
+
+   private final Cafe esql;
+   private final Timestamp from;
+   private final Timestamp to;
+   private final boolean binary;
+   private final boolean gzip;
+
+   // snapshot exported by the coordinator, shared by every worker
+   private String snapshot = null;
+
+   private Exporter(Cafe esql, Timestamp from, Timestamp to, boolean binary, boolean gzip) {
+      this.esql = esql;
+      this.from = from;
+      this.to = to;
+      this.binary = binary;
+      this.gzip = gzip;
+   }
+
+   /**
+    * Exports the orders placed in a time window, with their items.
+    *
+    * @param esql the Cafe whose database is exported
+    * @param dir the directory the files are written to, created if needed
+    * @param from start of the window, inclusive, or null for the beginning
+    * @param to end of the window, exclusive, or null for now
+    * @param binary true for the binary COPY format, false for csv
+    * @param gzip true to compress every file
+    * @return a one line summary
+    * @throws java.lang.Exception when a range could not be exported
+    */
+   public static String run(Cafe esql, String dir, Timestamp from, Timestamp to, boolean binary, boolean gzip) throws Exception {
+      // the whole export is one unit of report work, however many workers it uses
+      DbScheduler.admit();
+      try {
+         return export(esql, dir, from, to, binary, gzip);
+      } finally {
+         DbScheduler.release();
+      }
+   }//end run
+
+   private static String export(Cafe esql, String dir, Timestamp from, Timestamp to, boolean binary, boolean gzip) throws Exception {
+      final Exporter exporter = new Exporter(esql, from, to, binary, gzip);
+      Path directory = Paths.get(dir);
+      Files.createDirectories(directory);
+
+      long start = System.nanoTime();
+      // the coordinator holds the shared snapshot open until every worker is done
+      Connection coordinator = esql.openConnection();
+      try {
+         coordinator.setAutoCommit(false);
+         coordinator.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+         Statement stmt = coordinator.createStatement();
+         ResultSet rs = stmt.executeQuery("Select pg_export_snapshot()");
+         rs.next();
+         exporter.snapshot = rs.getString(1);
+         stmt.close();
+         return exporter.exportParts(directory, start);
+      } finally {
+         try {
+            coordinator.rollback();
+         } finally {
+            coordinator.close();
+         }
+      }
+   }//end export
+
+   private String exportParts(Path directory, long start) throws Exception {
+      long[] span = span();
+      List<Part> parts = new ArrayList<Part>();
+      String suffix = (binary ? ".bin" : ".csv") + (gzip ? ".gz" : "");
+      // an empty window still gets one (empty) file per table
+      long width = Math.max(1, (span[1] - span[0] + THREADS) / THREADS);
+      for (String table : new String[] { "orders", "itemstatus" })
+         for (long low = span[0]; low <= span[1]; low += width)
+            parts.add(new Part(table, low, low + width,
+               directory.resolve(String.format("%s-%010d%s", table, low, suffix))));
+
+      ExecutorService pool = Executors.newFixedThreadPool(Math.min(THREADS * 2, parts.size()));
+      try {
+         List<Future<Part>> done = new ArrayList<Future<Part>>();
+         for (final Part part : parts)
+            done.add(pool.submit(new Callable<Part>() {
+               public Part call() throws Exception {
+                  return export(part);
+               }
+            }));
+         for (Future<Part> future : done) {
+            try {
+               future.get();
+            } catch (ExecutionException e) {
+               throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+         }
+      } finally {
+         pool.shutdownNow();
+      }
+
+      long orders = 0, items = 0, bytes = 0;
+      for (Part part : parts) {
+         if (part.table.equals("orders"))
+            orders += part.rows;
+         else
+            items += part.rows;
+         bytes += part.bytes;
+      }
+      manifest(directory.resolve("manifest.txt"), parts);
+      double elapsed = (System.nanoTime() - start) / 1e6;
+      return String.format("Exported %d order(s) and %d item(s) to %d file(s) in %s, %d bytes in %.0f ms (%.1f MB/s).",
+         orders, items, parts.size(), directory, bytes, elapsed, elapsed > 0 ? bytes / 1e3 / elapsed : 0.0);
+   }//end exportParts
+
+   private String window(String alias) {
+      StringBuilder where = new StringBuilder();
+      if (from != null)
+         where.append(String.format(" and %s.timestamprecieved >= '%s'", alias, from));
+      if (to != null)
+         where.append(String.format(" and %s.timestamprecieved < '%s'", alias, to));
+      return where.toString();
+   }//end window
+
+   /*
+    * Opens a connection inside a REPEATABLE READ transaction on the
+    * coordinator's snapshot.
+    */
+   private Connection openOnSnapshot() throws SQLException {
+      Connection conn = esql.openConnection();
+      try {
+         conn.setAutoCommit(false);
+         conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+         Statement stmt = conn.createStatement();
+         stmt.execute(String.format("SET TRANSACTION SNAPSHOT '%s'", snapshot));
+         stmt.close();
+         return conn;
+      } catch (SQLException e) {
+         conn.close();
+         throw e;
+      }
+   }//end openOnSnapshot
+
+   /*
+    * Smallest and largest orderid in the window.
+    */
+   private long[] span() throws SQLException {
+      Connection conn = openOnSnapshot();
+      try {
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery("Select coalesce(min(O.orderid),0), coalesce(max(O.orderid),0) From Orders O Where true" + window("O"));
+         rs.next();
+         long[] span = { rs.getLong(1), rs.getLong(2) };
+         stmt.close();
+         return span;
+      } finally {
+         conn.close();
+      }
+   }//end span
+
+   /*
+    * Streams one range of one table into its file.
+    */
+   private Part export(Part part) throws SQLException, IOException {
+      long start = System.nanoTime();
+      String query = part.table.equals("orders")
+         ? String.format("Select O.* From Orders O Where O.orderid >= %d and O.orderid < %d%s Order By O.orderid", part.low, part.high, window("O"))
+         : String.format("Select I.* From ItemStatus I, Orders O Where I.orderid = O.orderid and O.orderid >= %d and O.orderid < %d%s Order By I.orderid", part.low, part.high, window("O"));
+      String copy = String.format("COPY (%s) TO STDOUT WITH (FORMAT %s)", query, binary ? "binary" : "csv, HEADER");
+
+      Connection conn = openOnSnapshot();
+      FileChannel channel = FileChannel.open(part.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+         CheckedOutputStream checked = new CheckedOutputStream(Channels.newOutputStream(channel), new CRC32());
+         OutputStream out = gzip ? new GZIPOutputStream(checked, BUFFER_BYTES) : new BufferedOutputStream(checked, BUFFER_BYTES);
+         part.rows = conn.unwrap(PGConnection.class).getCopyAPI().copyOut(copy, out);
+         out.close();
+         part.crc = checked.getChecksum().getValue();
+         part.bytes = Files.size(part.path);
+      } finally {
+         channel.close();
+         conn.close();
+      }
+      part.millis = (System.nanoTime() - start) / 1000000;
+      return part;
+   }//end export
+
+   private void manifest(Path path, List<Part> parts) throws IOException {
+      Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+      try {
+         out.write(String.format("# created %s, window %s to %s, format %s%s%n", new Timestamp(System.currentTimeMillis()),
+            from == null ? "-" : from, to == null ? "-" : to, binary ? "binary" : "csv", gzip ? ", gzip" : ""));
+         out.write(String.format("# file;table;from orderid;to orderid;rows;bytes;crc32;ms%n"));
+         for (Part part : parts)
+            out.write(String.format("%s;%s;%d;%d;%d;%d;%08x;%d%n", part.path.getFileName(), part.table,
+               part.low, part.high, part.rows, part.bytes, part.crc, part.millis));
+      } finally {
+         out.close();
+      }
+   }//end manifest
+
+}//end Exporter
@@ -0,0 +1,419 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process maintenance scheduler.  Runs small background jobs on their
+ * own connection so the tables behind the hot queries stay small and their
+ * planner statistics current:
+ *
+ *    purge-drafts    deletes empty draft orders PlaceOrder left behind, a
+ *                    small batch per transaction with a short lock_timeout
+ *                    so it never queues behind a register
+ *    reap-cancelled  deletes canceled orders and, by cascade, their items,
+ *                    in small chunks with a pause between them, so the
+ *                    cascade never runs while a customer waits
+ *    analyze         runs ANALYZE on a table once enough rows changed in
+ *                    bulk (settlements, scripts, purges) since the last one
+ *
+ * Every register runs the scheduler, but a job only runs on one of them at
+ * a time: each run first takes the job's advisory lock with
+ * pg_try_advisory_lock and skips the run if another register holds it.
+ *
+ * Every job keeps its run count, last duration, rows processed and last
+ * error for the manager's status screen.
+ *
+ */
+public class Maintenance {
+
+   // drafts untouched this long are abandoned
+   private static final int DRAFT_MAX_AGE_HOURS = Integer.getInteger("cafe.draftMaxAgeHours", 2);
+
+   // rows per delete transaction, and the longest a batch waits for a lock
+   private static final int BATCH_ROWS = 500;
+   private static final String LOCK_TIMEOUT = "200ms";
+
+   // pause between batches, and how many batches one run may do
+   private static final long BATCH_PAUSE_MS = 50;
+   private static final int MAX_BATCHES = 40;
+
+   // canceled orders per chunk, pause between chunks (at most ~2000 orders a second)
+   private static final int REAP_ROWS = 200;
+   private static final long REAP_PAUSE_MS = 100;
+
+   // bulk changed rows that make a table worth analyzing
+   private static final long ANALYZE_THRESHOLD = 1000;
+
+   // the delete statements, also explained as they are by PlanCheck
+   static final String PURGE_DRAFTS = String.format(
+      "Delete From Orders Where orderid In (Select O.orderid From Orders O Where O.total = 0 and O.paid = 'f' and O.timestamprecieved < Now() - interval '%d hours' and not exists (Select * From ItemStatus I Where I.orderid = O.orderid) Limit %d)",
+      DRAFT_MAX_AGE_HOURS, BATCH_ROWS);
+   static final String REAP_CANCELLED = String.format(
+      "Delete From Orders Where orderid In (Select orderid From Orders Where cancelled Limit %d)", REAP_ROWS);
+
+   private static final long PURGE_EVERY_MS = 10 * 60 * 1000;
+   private static final long REAP_EVERY_MS = 60 * 1000;
+   private static final long ANALYZE_EVERY_MS = 60 * 1000;
+
+   // how long stop() waits for a running job to finish
+   private static final long STOP_WAIT_MS = 5000;
+
+   // first key of the jobs' advisory locks, "CAFE"; the second is the job's own
+   private static final int LOCK_CLASS = 0x43414645;
+
+   /**
+    * Timings and counters of one job.
+    */
+   public static class JobStats {
+      public final String name;
+      final int lock;
+      long runs = 0;
+      long lastMillis = 0;
+      long lastRows = 0;
+      long totalRows = 0;
+      long lastRunAt = 0;
+      String lastError = "";
+
+      JobStats(String name, int lock) {
+         this.name = name;
+         this.lock = lock;
+      }
+   }//end JobStats
+
+   private final Cafe esql;
+   private final Map<String, JobStats> stats = new LinkedHashMap<String, JobStats>();
+   private final Map<String, AtomicLong> changed = new ConcurrentHashMap<String, AtomicLong>();
+   private ScheduledExecutorService scheduler = null;
+   private Connection connection = null;
+
+   /**
+    * Creates the scheduler for the database of the given Cafe.
+    *
+    * @param esql the Cafe to open the maintenance connection from
+    */
+   public Maintenance(Cafe esql) {
+      this.esql = esql;
+      stats.put("purge-drafts", new JobStats("purge-drafts", 1));
+      stats.put("reap-cancelled", new JobStats("reap-cancelled", 2));
+      stats.put("analyze", new JobStats("analyze", 3));
+   }//end Maintenance
+
+   /**
+    * Starts the background jobs.
+    */
+   public synchronized void start() {
+      if (scheduler != null)
+         return;
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+               public void run() {
+                  DbScheduler.use(DbScheduler.BACKGROUND);
+                  r.run();
+               }
+            }, "maintenance");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            purgeDrafts();
+         }
+      }, PURGE_EVERY_MS, PURGE_EVERY_MS, TimeUnit.MILLISECONDS);
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            reapCancelled();
+         }
+      }, REAP_EVERY_MS, REAP_EVERY_MS, TimeUnit.MILLISECONDS);
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            analyze();
+         }
+      }, ANALYZE_EVERY_MS, ANALYZE_EVERY_MS, TimeUnit.MILLISECONDS);
+   }//end start
+
+   /**
+    * Stops the jobs, analyzing first if bulk changes are still pending so a
+    * short headless run leaves fresh statistics behind.  Nothing is
+    * analyzed if the jobs never started (an offline start), or if a job is
+    * still on the maintenance connection after STOP_WAIT_MS.
+    */
+   public void stop() {
+      ScheduledExecutorService running;
+      synchronized (this) {
+         running = scheduler;
+         scheduler = null;
+      }
+      if (running == null)
+         return;
+      running.shutdownNow();
+      boolean idle = false;
+      try {
+         idle = running.awaitTermination(STOP_WAIT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      if (idle)
+         analyze();
+      closeConnection();
+   }//end stop
+
+   /**
+    * Records rows changed in bulk, for the analyze job.
+    *
+    * @param table the table that changed
+    * @param rows the number of rows inserted, updated or deleted
+    */
+   public void changed(String table, long rows) {
+      if (rows <= 0)
+         return;
+      String key = table.toLowerCase();
+      AtomicLong count = changed.get(key);
+      if (count == null) {
+         changed.putIfAbsent(key, new AtomicLong());
+         count = changed.get(key);
+      }
+      count.addAndGet(rows);
+   }//end changed
+
+   private synchronized Connection connection() throws SQLException {
+      if (connection == null)
+         connection = esql.openConnection();
+      return connection;
+   }
+
+   private synchronized void closeConnection() {
+      try {
+         if (connection != null)
+            connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+      connection = null;
+   }//end closeConnection
+
+   private void finish(JobStats job, long start, long rows, SQLException failure) {
+      synchronized (stats) {
+         job.runs++;
+         job.lastMillis = (System.nanoTime() - start) / 1000000;
+         job.lastRows = rows;
+         job.totalRows += rows;
+         job.lastRunAt = System.currentTimeMillis();
+         job.lastError = failure == null ? "" : failure.getMessage();
+      }
+      if (failure != null && Cafe.isConnectionError(failure))
+         closeConnection();
+   }//end finish
+
+   /*
+    * Takes the job's advisory lock on the maintenance connection.
+    *
+    * @return false if another register is running the job
+    */
+   private boolean lock(JobStats job) throws SQLException {
+      Statement stmt = connection().createStatement();
+      try {
+         stmt.setQueryTimeout(DbScheduler.timeout());
+         ResultSet rs = stmt.executeQuery(String.format("Select pg_try_advisory_lock(%d, %d)", LOCK_CLASS, job.lock));
+         rs.next();
+         return rs.getBoolean(1);
+      } finally {
+         stmt.close();
+      }
+   }//end lock
+
+   /*
+    * Releases the job's advisory lock.  Not admitted through the scheduler,
+    * a shed unlock would keep the job from running anywhere else.
+    */
+   private void unlock(JobStats job) {
+      try {
+         Statement stmt = connection().createStatement();
+         try {
+            stmt.execute(String.format("Select pg_advisory_unlock(%d, %d)", LOCK_CLASS, job.lock));
+         } finally {
+            stmt.close();
+         }
+      } catch (SQLException e) {
+         // the lock goes with the connection when it failed
+      }
+   }//end unlock
+
+   /**
+    * Deletes abandoned empty drafts in small batches.
+    *
+    * @return the number of orders deleted
+    */
+   public long purgeDrafts() {
+      return deleteInBatches(stats.get("purge-drafts"), PURGE_DRAFTS, BATCH_ROWS, BATCH_PAUSE_MS);
+   }//end purgeDrafts
+
+   /**
+    * Deletes canceled orders, and their items by cascade, in small chunks.
+    * The rollup triggers ignore these deletes, the lines were already taken
+    * out of SalesItem at their charged price when the order was canceled.
+    *
+    * @return the number of orders deleted
+    */
+   public long reapCancelled() {
+      return deleteInBatches(stats.get("reap-cancelled"), REAP_CANCELLED, REAP_ROWS, REAP_PAUSE_MS);
+   }//end reapCancelled
+
+   /*
+    * Runs a limited delete until it deletes less than a full batch, one
+    * transaction per batch with a short lock_timeout and a pause between
+    * batches, at most MAX_BATCHES per run.  Each batch is admitted on its
+    * own, so the pauses hold no scheduler permit.
+    */
+   private long deleteInBatches(JobStats job, String delete, int batchRows, long pauseMs) {
+      long start = System.nanoTime();
+      long rows = 0;
+      SQLException failure = null;
+      try {
+         DbScheduler.admit();
+         boolean locked;
+         try {
+            locked = lock(job);
+         } finally {
+            DbScheduler.release();
+         }
+         if (!locked)
+            return 0;
+         try {
+            for (int batch = 0; batch < MAX_BATCHES; ++batch) {
+               int deleted;
+               DbScheduler.admit();
+               try {
+                  deleted = deleteBatch(delete);
+               } finally {
+                  DbScheduler.release();
+               }
+               rows += deleted;
+               if (deleted < batchRows)
+                  break;
+               Thread.sleep(pauseMs);
+            }
+         } finally {
+            unlock(job);
+         }
+      } catch (SQLException e) {
+         failure = e;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      changed("orders", rows);
+      finish(job, start, rows, failure);
+      return rows;
+   }//end deleteInBatches
+
+   /*
+    * One delete transaction.
+    */
+   private int deleteBatch(String delete) throws SQLException {
+      Connection conn = connection();
+      Statement stmt = conn.createStatement();
+      stmt.setQueryTimeout(DbScheduler.timeout());
+      conn.setAutoCommit(false);
+      try {
+         stmt.execute("Set Local lock_timeout = '" + LOCK_TIMEOUT + "'");
+         int deleted = stmt.executeUpdate(delete);
+         conn.commit();
+         return deleted;
+      } catch (SQLException e) {
+         conn.rollback();
+         throw e;
+      } finally {
+         conn.setAutoCommit(true);
+         stmt.close();
+      }
+   }//end deleteBatch
+
+   /**
+    * Analyzes every table with enough bulk changes since its last analyze.
+    *
+    * @return the number of tables analyzed
+    */
+   public long analyze() {
+      JobStats job = stats.get("analyze");
+      long start = System.nanoTime();
+      long tables = 0;
+      SQLException failure = null;
+      try {
+         DbScheduler.admit();
+      } catch (SQLException e) {
+         finish(job, start, 0, e);
+         return 0;
+      }
+      try {
+         if (!lock(job))
+            return 0;
+         try {
+            tables = analyzeTables();
+         } finally {
+            unlock(job);
+         }
+      } catch (SQLException e) {
+         failure = e;
+      } finally {
+         DbScheduler.release();
+      }
+      finish(job, start, tables, failure);
+      return tables;
+   }//end analyze
+
+   private long analyzeTables() throws SQLException {
+      long tables = 0;
+      SQLException failure = null;
+      for (Map.Entry<String, AtomicLong> entry : changed.entrySet()) {
+         if (entry.getValue().get() < ANALYZE_THRESHOLD)
+            continue;
+         long rows = entry.getValue().getAndSet(0);
+         try {
+            Statement stmt = connection().createStatement();
+            stmt.setQueryTimeout(DbScheduler.timeout());
+            try {
+               stmt.execute("Analyze " + entry.getKey());
+            } finally {
+               stmt.close();
+            }
+            ++tables;
+         } catch (SQLException e) {
+            // keep the count so the next run tries again
+            entry.getValue().addAndGet(rows);
+            failure = e;
+         }
+      }
+      if (failure != null)
+         throw failure;
+      return tables;
+   }//end analyzeTables
+
+   /**
+    * @return one line per job for the status screen
+    */
+   public List<String> report() {
+      List<String> lines = new ArrayList<String>();
+      lines.add(String.format("%-14s %6s %10s %10s %10s  %-19s %s", "job", "runs", "last ms", "last rows", "total rows", "last run", "last error"));
+      synchronized (stats) {
+         for (JobStats job : stats.values())
+            lines.add(String.format("%-14s %6d %10d %10d %10d  %-19s %s", job.name, job.runs, job.lastMillis, job.lastRows, job.totalRows,
+               job.lastRunAt == 0 ? "-" : new java.sql.Timestamp(job.lastRunAt).toString().substring(0, 19), job.lastError));
+      }
+      for (Map.Entry<String, AtomicLong> entry : changed.entrySet())
+         lines.add(String.format("pending analyze: %s, %d changed row(s)", entry.getKey(), entry.getValue().get()));
+      return lines;
+   }//end report
+
+}//end Maintenance
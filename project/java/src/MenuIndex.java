@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory search index over the Menu table.  Item names, types and
+ * descriptions are split into lower case tokens which are kept in a sorted
+ * array (for prefix lookups) and in a trigram map (for substring and typo
+ * tolerant lookups).  Queries never touch the database; the index is
+ * rebuilt from a single "Select * From Menu" whenever the menu changes.
+ *
+ */
+public class MenuIndex {
+
+   // column positions of a Menu row
+   public static final int ITEMNAME = 0;
+   public static final int TYPE = 1;
+   public static final int PRICE = 2;
+   public static final int DESCRIPTION = 3;
+   public static final int IMAGEURL = 4;
+
+   private static final String[] HEADER = {"itemname", "type", "price", "description", "imageurl"};
+
+   // field weights, a hit on the name ranks above a hit on the type or description
+   private static final int[] FIELD_WEIGHT = {4, 2, 0, 1, 0};
+
+   // menu rows with every attribute trimmed
+   private final List<String[]> items = new ArrayList<String[]>();
+
+   // every distinct token, sorted, so a prefix is a binary search plus a short scan
+   private final String[] tokens;
+
+   // token -> bitmask of fields per item, as item index -> field mask
+   private final Map<String, Map<Integer, Integer>> postings = new HashMap<String, Map<Integer, Integer>>();
+
+   // trigram -> tokens containing it
+   private final Map<String, Set<String>> trigrams = new HashMap<String, Set<String>>();
+
+   private final long builtAt = System.currentTimeMillis();
+
+   /**
+    * Builds the index from Menu rows as returned by
+    * executeQueryAndReturnResult("Select * From Menu").
+    *
+    * @param rows the menu rows
+    */
+   public MenuIndex(List<List<String>> rows) {
+      for (List<String> row : rows) {
+         String[] item = new String[HEADER.length];
+         for (int i = 0; i < item.length; ++i)
+            item[i] = (i < row.size() && row.get(i) != null) ? row.get(i).trim() : "";
+         int id = items.size();
+         items.add(item);
+
+         index(id, ITEMNAME, item[ITEMNAME]);
+         index(id, TYPE, item[TYPE]);
+         index(id, DESCRIPTION, item[DESCRIPTION]);
+      }//end for
+      tokens = postings.keySet().toArray(new String[0]);
+      Arrays.sort(tokens);
+   }//end MenuIndex
+
+   private void index(int id, int field, String text) {
+      for (String word : split(text)) {
+         Map<Integer, Integer> post = postings.get(word);
+         if (post == null) {
+            post = new HashMap<Integer, Integer>();
+            postings.put(word, post);
+            for (String gram : grams(word)) {
+               Set<String> owners = trigrams.get(gram);
+               if (owners == null) {
+                  owners = new HashSet<String>();
+                  trigrams.put(gram, owners);
+               }
+               owners.add(word);
+            }
+         }
+         Integer mask = post.get(id);
+         post.put(id, (mask == null ? 0 : mask) | (1 << field));
+      }
+   }//end index
+
+   private static List<String> split(String text) {
+      List<String> words = new ArrayList<String>();
+      for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+"))
+         if (word.length() > 0)
+            words.add(word);
+      return words;
+   }//end split
+
+   private static List<String> grams(String word) {
+      String padded = "  " + word + " ";
+      List<String> result = new ArrayList<String>();
+      for (int i = 0; i + 3 <= padded.length(); ++i)
+         result.add(padded.substring(i, i + 3));
+      return result;
+   }//end grams
+
+   /**
+    * @return the time in milliseconds this index was built
+    */
+   public long builtAt() {
+      return builtAt;
+   }
+
+   /**
+    * @return every menu row, in table order
+    */
+   public List<String[]> items() {
+      return Collections.unmodifiableList(items);
+   }
+
+   /**
+    * Looks up a single item by its exact (case sensitive) name.
+    *
+    * @param itemname the item name
+    * @return the menu row, or null if there is no such item
+    */
+   public String[] get(String itemname) {
+      String name = itemname.trim();
+      for (String[] item : items)
+         if (item[ITEMNAME].equals(name))
+            return item;
+      return null;
+   }//end get
+
+   /**
+    * Searches names, types and descriptions.  Every word of the query must
+    * match some token as an exact word, a prefix, a substring or within a
+    * small edit distance; items are ranked by how well and where they match.
+    *
+    * @param query the text typed by the user
+    * @return matching menu rows, best match first
+    */
+   public List<String[]> search(String query) {
+      List<String> words = split(query);
+      final Map<Integer, Integer> score = new HashMap<Integer, Integer>();
+      boolean first = true;
+      for (String word : words) {
+         Map<Integer, Integer> hits = new HashMap<Integer, Integer>();
+         for (Map.Entry<String, Integer> match : matches(word).entrySet()) {
+            for (Map.Entry<Integer, Integer> post : postings.get(match.getKey()).entrySet()) {
+               int s = match.getValue() * weight(post.getValue());
+               Integer best = hits.get(post.getKey());
+               if (best == null || s > best)
+                  hits.put(post.getKey(), s);
+            }
+         }
+         // all words have to match, so keep only items seen for every word
+         if (first) {
+            score.putAll(hits);
+            first = false;
+         }
+         else {
+            score.keySet().retainAll(hits.keySet());
+            for (Map.Entry<Integer, Integer> e : score.entrySet())
+               e.setValue(e.getValue() + hits.get(e.getKey()));
+         }
+      }//end for
+
+      List<Integer> ids = new ArrayList<Integer>(score.keySet());
+      Collections.sort(ids, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            int c = score.get(b) - score.get(a);
+            return c != 0 ? c : items.get(a)[ITEMNAME].compareToIgnoreCase(items.get(b)[ITEMNAME]);
+         }
+      });
+      List<String[]> result = new ArrayList<String[]>();
+      for (Integer id : ids)
+         result.add(items.get(id));
+      return result;
+   }//end search
+
+   private static int weight(int fieldMask) {
+      int best = 0;
+      for (int field = 0; field < FIELD_WEIGHT.length; ++field)
+         if ((fieldMask & (1 << field)) != 0)
+            best = Math.max(best, FIELD_WEIGHT[field]);
+      return best;
+   }//end weight
+
+   /*
+    * Finds the tokens a single query word matches, with a match quality:
+    * exact 10, prefix 7, substring 4, typo 3 (one edit) or 1 (two edits).
+    */
+   private Map<String, Integer> matches(String word) {
+      Map<String, Integer> result = new HashMap<String, Integer>();
+
+      // prefixes (and the exact token) are a contiguous run of the sorted array
+      int at = Arrays.binarySearch(tokens, word);
+      if (at < 0)
+         at = -at - 1;
+      for (int i = at; i < tokens.length && tokens[i].startsWith(word); ++i)
+         result.put(tokens[i], tokens[i].length() == word.length() ? 10 : 7);
+
+      // any token sharing a trigram with the word is a candidate for the slower checks
+      Set<String> candidates = new HashSet<String>();
+      for (String gram : grams(word)) {
+         Set<String> owners = trigrams.get(gram);
+         if (owners != null)
+            candidates.addAll(owners);
+      }
+      int maxTypos = word.length() <= 3 ? 0 : (word.length() <= 6 ? 1 : 2);
+      for (String token : candidates) {
+         if (result.containsKey(token))
+            continue;
+         if (word.length() >= 3 && token.contains(word)) {
+            result.put(token, 4);
+            continue;
+         }
+         if (maxTypos == 0)
+            continue;
+         // compare against the whole token and against a prefix of it, for half typed words
+         int d = distance(word, token);
+         if (token.length() > word.length())
+            d = Math.min(d, distance(word, token.substring(0, word.length())));
+         if (d <= maxTypos)
+            result.put(token, d == 1 ? 3 : 1);
+      }
+      return result;
+   }//end matches
+
+   /*
+    * Optimal string alignment distance, so a swapped pair of letters is one typo.
+    */
+   private static int distance(String a, String b) {
+      int[][] d = new int[a.length() + 1][b.length() + 1];
+      for (int i = 0; i <= a.length(); ++i)
+         d[i][0] = i;
+      for (int j = 0; j <= b.length(); ++j)
+         d[0][j] = j;
+      for (int i = 1; i <= a.length(); ++i) {
+         for (int j = 1; j <= b.length(); ++j) {
+            int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+            d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+            if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1))
+               d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+         }
+      }
+      return d[a.length()][b.length()];
+   }//end distance
+
+   /**
+    * Prints menu rows in the same layout as executeQueryAndPrintResult.
+    *
+    * @param rows the menu rows to print
+    * @return the number of rows printed
+    */
+   public static int print(List<String[]> rows) {
+      if (rows.isEmpty())
+         return 0;
+      for (String column : HEADER)
+         System.out.print(String.format("%-20.20s", column) + "\t");
+      System.out.println();
+      for (String[] row : rows) {
+         for (String value : row)
+            System.out.print(String.format("%-16.16s", value) + "\t");
+         System.out.println();
+      }
+      return rows.size();
+   }//end print
+
+}//end MenuIndex
@@ -0,0 +1,464 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead journal for orders taken while the database is
+ * unreachable.  Orders are appended to a memory-mapped, append-only file as
+ * checksummed records; a flusher thread forces the mapping to disk in
+ * batches and appenders wait for the batch that covers their record.  A
+ * replayer thread keeps trying to reach the database and applies the
+ * pending records, each in its own transaction together with a
+ * JournalApplied row, so a record is never applied twice even if the
+ * journal is replayed again after a crash.
+ *
+ * File layout: a HEADER_SIZE byte header (magic, version, offset of the
+ * first record not yet applied) followed by records of
+ * [int length][int crc32][payload]; a zero length marks the end.
+ *
+ */
+public class OrderJournal {
+
+   private static final int MAGIC = 0x4341464A; // "CAFJ"
+   private static final int VERSION = 1;
+   private static final int HEADER_SIZE = 64;
+   private static final int APPLIED_AT = 8;
+   private static final int RECORD_HEADER = 8;
+
+   // how long the flusher waits to gather appends into one force()
+   private static final long FLUSH_MS = 10;
+
+   // how often the replayer retries the database
+   private static final long REPLAY_MS = 5000;
+
+   // reprices a replayed order (orderid twice), also explained as it is by PlanCheck
+   static final String REPRICE = "Update Orders Set total = (Select coalesce(sum(M.price),0) From ItemStatus I, Menu M Where I.itemName = M.itemName and I.orderid = ?) Where orderid = ?";
+
+   /**
+    * An order taken offline, as stored in one journal record.
+    */
+   public static class Entry {
+      public final String id;
+      public final String login;
+      public final long time;
+      // order the lines are added to, -1 for a new order
+      public final int continues;
+      public final List<String> items;
+      // file offset just past this record
+      long end;
+
+      public Entry(String id, String login, long time, int continues, List<String> items) {
+         this.id = id;
+         this.login = login;
+         this.time = time;
+         this.continues = continues;
+         this.items = items;
+      }
+
+      byte[] encode() throws IOException {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeUTF(id);
+         out.writeUTF(login);
+         out.writeLong(time);
+         out.writeInt(continues);
+         out.writeInt(items.size());
+         for (String item : items)
+            out.writeUTF(item);
+         out.flush();
+         return bytes.toByteArray();
+      }
+
+      static Entry decode(byte[] payload) throws IOException {
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+         String id = in.readUTF();
+         String login = in.readUTF();
+         long time = in.readLong();
+         int continues = in.readInt();
+         int count = in.readInt();
+         List<String> items = new ArrayList<String>();
+         for (int i = 0; i < count; ++i)
+            items.add(in.readUTF());
+         return new Entry(id, login, time, continues, items);
+      }
+   }//end Entry
+
+   private final RandomAccessFile file;
+   private final MappedByteBuffer buffer;
+   private final int capacity;
+
+   // guarded by this
+   private int writePos;
+   private int syncedPos;
+   private int appliedPos;
+
+   private final Cafe esql;
+   private Thread flusher = null;
+   private Thread replayer = null;
+   private volatile boolean running = false;
+
+   /**
+    * Opens (or creates) the journal file and recovers the write position by
+    * scanning the records after the applied offset; a torn or corrupt record
+    * at the tail ends the journal.
+    *
+    * @param esql the Cafe whose database the journal is replayed into
+    * @param path the journal file
+    * @param capacity the size of the mapped file in bytes
+    * @throws java.io.IOException when the file cannot be mapped
+    */
+   public OrderJournal(Cafe esql, String path, int capacity) throws IOException {
+      this.esql = esql;
+      this.file = new RandomAccessFile(new File(path), "rw");
+      if (file.length() > capacity)
+         capacity = (int) file.length();
+      this.capacity = capacity;
+      this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+      if (buffer.getInt(0) != MAGIC) {
+         buffer.putInt(0, MAGIC);
+         buffer.putInt(4, VERSION);
+         buffer.putLong(APPLIED_AT, HEADER_SIZE);
+         buffer.putInt(HEADER_SIZE, 0);
+         buffer.force();
+      }
+      appliedPos = (int) buffer.getLong(APPLIED_AT);
+      writePos = appliedPos;
+      while (readAt(writePos) != null)
+         writePos = nextAfter(writePos);
+      // cut off anything torn beyond the last good record
+      if (writePos + RECORD_HEADER <= capacity)
+         buffer.putInt(writePos, 0);
+      syncedPos = writePos;
+   }//end OrderJournal
+
+   private int nextAfter(int pos) {
+      return pos + RECORD_HEADER + buffer.getInt(pos);
+   }
+
+   /*
+    * Returns the payload of the record at pos, or null if there is no valid
+    * record there.
+    */
+   private byte[] readAt(int pos) {
+      if (pos + RECORD_HEADER > capacity)
+         return null;
+      int length = buffer.getInt(pos);
+      if (length <= 0 || pos + RECORD_HEADER + length > capacity)
+         return null;
+      byte[] payload = new byte[length];
+      for (int i = 0; i < length; ++i)
+         payload[i] = buffer.get(pos + RECORD_HEADER + i);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != buffer.getInt(pos + 4))
+         return null;
+      return payload;
+   }//end readAt
+
+   /**
+    * Starts the flusher and replayer threads.
+    */
+   public synchronized void start() {
+      if (running)
+         return;
+      running = true;
+      flusher = new Thread(new Runnable() {
+         public void run() {
+            flushLoop();
+         }
+      }, "journal-flusher");
+      flusher.setDaemon(true);
+      flusher.start();
+      replayer = new Thread(new Runnable() {
+         public void run() {
+            replayLoop();
+         }
+      }, "journal-replayer");
+      replayer.setDaemon(true);
+      replayer.start();
+   }//end start
+
+   /**
+    * Stops the background threads after a last flush.
+    */
+   public void stop() {
+      synchronized (this) {
+         running = false;
+         notifyAll();
+      }
+      if (flusher != null)
+         flusher.interrupt();
+      if (replayer != null)
+         replayer.interrupt();
+      buffer.force();
+      try {
+         file.close();
+      } catch (IOException e) {
+         // ignored.
+      }
+   }//end stop
+
+   /**
+    * Appends an order and returns once the record is on disk.  Appends that
+    * arrive within the same flush interval share one force().
+    *
+    * @param login the customer the order is for
+    * @param items the item names on the order
+    * @param continues an existing order the items are added to, or -1
+    * @return the journal id of the order
+    * @throws java.io.IOException when the journal is full or could not be synced
+    */
+   public String append(String login, List<String> items, int continues) throws IOException {
+      Entry entry = new Entry(UUID.randomUUID().toString(), login, System.currentTimeMillis(), continues, items);
+      byte[] payload = entry.encode();
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+
+      synchronized (this) {
+         int end = writePos + RECORD_HEADER + payload.length;
+         // keep room for the terminating zero length
+         if (end + 4 > capacity)
+            throw new IOException("Order journal is full");
+         for (int i = 0; i < payload.length; ++i)
+            buffer.put(writePos + RECORD_HEADER + i, payload[i]);
+         buffer.putInt(end, 0);
+         buffer.putInt(writePos + 4, (int) crc.getValue());
+         // the length goes last, a record is only visible once it is complete
+         buffer.putInt(writePos, payload.length);
+         writePos = end;
+         notifyAll();
+
+         while (syncedPos < end) {
+            if (!running) {
+               buffer.force();
+               syncedPos = writePos;
+               break;
+            }
+            try {
+               wait();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted while syncing the order journal");
+            }
+         }
+      }
+      return entry.id;
+   }//end append
+
+   private void flushLoop() {
+      while (running) {
+         int target;
+         synchronized (this) {
+            while (running && syncedPos == writePos) {
+               try {
+                  wait();
+               } catch (InterruptedException e) {
+                  return;
+               }
+            }
+         }
+         try {
+            // let more appends join this batch
+            Thread.sleep(FLUSH_MS);
+         } catch (InterruptedException e) {
+            return;
+         }
+         synchronized (this) {
+            target = writePos;
+         }
+         buffer.force();
+         synchronized (this) {
+            syncedPos = Math.max(syncedPos, target);
+            notifyAll();
+         }
+      }
+   }//end flushLoop
+
+   /**
+    * @return the number of orders waiting to be replayed
+    */
+   public synchronized int pending() {
+      int count = 0;
+      for (int pos = appliedPos; readAt(pos) != null && pos < writePos; pos = nextAfter(pos))
+         ++count;
+      return count;
+   }//end pending
+
+   private synchronized List<Entry> unapplied() throws IOException {
+      List<Entry> entries = new ArrayList<Entry>();
+      for (int pos = appliedPos; pos < writePos; pos = nextAfter(pos)) {
+         byte[] payload = readAt(pos);
+         if (payload == null)
+            break;
+         Entry entry = Entry.decode(payload);
+         entry.end = nextAfter(pos);
+         entries.add(entry);
+      }
+      return entries;
+   }//end unapplied
+
+   /*
+    * Moves the applied offset past a replayed record.  When everything is
+    * applied the journal starts over at the front of the file.
+    */
+   private synchronized void markApplied(int end) {
+      appliedPos = end;
+      if (appliedPos == writePos && syncedPos == writePos) {
+         buffer.putInt(HEADER_SIZE, 0);
+         appliedPos = writePos = syncedPos = HEADER_SIZE;
+      }
+      buffer.putLong(APPLIED_AT, appliedPos);
+      buffer.force();
+   }//end markApplied
+
+   private void replayLoop() {
+      while (running) {
+         try {
+            Thread.sleep(REPLAY_MS);
+         } catch (InterruptedException e) {
+            return;
+         }
+         if (!esql.isOffline() && pending() == 0)
+            continue;
+         Connection conn = null;
+         try {
+            conn = esql.openConnection();
+            List<String> dropped = new ArrayList<String>();
+            int replayed = replay(conn, dropped);
+            if (replayed > 0)
+               System.out.println(String.format("\n[%d offline order(s) sent to the database]", replayed));
+            for (String warning : dropped)
+               System.out.println(String.format("\n[Warning: %s]", warning));
+            if (esql.isOffline()) {
+               esql.reconnect(conn);
+               conn = null;
+               System.out.println("\n[Database is reachable again, back online]");
+            }
+         } catch (Exception e) {
+            // still unreachable, try again later
+         } finally {
+            try {
+               if (conn != null)
+                  conn.close();
+            } catch (SQLException e) {
+               // ignored.
+            }
+         }
+      }
+   }//end replayLoop
+
+   /**
+    * Applies every pending record to the database, oldest first.
+    *
+    * @param conn the connection to apply the records on
+    * @param dropped receives a line for every item left out because it is no
+    *        longer on the menu; those items are also kept in JournalDropped
+    * @return the number of records applied
+    * @throws java.sql.SQLException when the database failed, the remaining
+    *         records stay pending
+    * @throws java.io.IOException when a record could not be decoded
+    */
+   public int replay(Connection conn, List<String> dropped) throws SQLException, IOException {
+      int applied = 0;
+      for (Entry entry : unapplied()) {
+         apply(conn, entry, dropped);
+         markApplied((int) entry.end);
+         ++applied;
+      }
+      return applied;
+   }//end replay
+
+   private static void apply(Connection conn, Entry entry, List<String> dropped) throws SQLException {
+      boolean autoCommit = conn.getAutoCommit();
+      conn.setAutoCommit(false);
+      try {
+         PreparedStatement seen = conn.prepareStatement("Select orderid From JournalApplied Where id = ?");
+         seen.setString(1, entry.id);
+         boolean done = seen.executeQuery().next();
+         seen.close();
+         if (done) {
+            conn.rollback();
+            return;
+         }
+
+         // continue the order the register was on when the connection dropped, if it is still open
+         int orderid = -1;
+         if (entry.continues >= 0) {
+            PreparedStatement open = conn.prepareStatement("Select orderid From Orders Where orderid = ? and paid = 'f' and not cancelled For Update");
+            open.setInt(1, entry.continues);
+            ResultSet rs = open.executeQuery();
+            if (rs.next())
+               orderid = rs.getInt(1);
+            open.close();
+         }
+         if (orderid < 0) {
+            PreparedStatement insert = conn.prepareStatement("Insert Into Orders(login, paid, timestamprecieved) Values (?, 'f', ?) Returning orderid");
+            insert.setString(1, entry.login);
+            insert.setTimestamp(2, new Timestamp(entry.time));
+            ResultSet rs = insert.executeQuery();
+            rs.next();
+            orderid = rs.getInt(1);
+            insert.close();
+         }
+
+         // items no longer on the menu are kept aside instead of silently lost
+         PreparedStatement gone = conn.prepareStatement("Insert Into JournalDropped (id, orderid, itemName, dropped) Select ?, ?, X.item, Now() From unnest(?) X(item) Where not exists (Select 1 From Menu M Where M.itemName = X.item) Returning itemName");
+         gone.setString(1, entry.id);
+         gone.setInt(2, orderid);
+         gone.setArray(3, conn.createArrayOf("varchar", new LinkedHashSet<String>(entry.items).toArray()));
+         List<String> missing = new ArrayList<String>();
+         ResultSet rs = gone.executeQuery();
+         while (rs.next())
+            missing.add(rs.getString(1).trim());
+         gone.close();
+
+         // items already on the order are skipped
+         PreparedStatement lines = conn.prepareStatement("Insert Into ItemStatus (orderid,itemName,lastUpdated,status,comments) Select ?, M.itemName, ?, '', '' From Menu M Where M.itemName = ANY (?) and M.itemName not in (Select itemName From ItemStatus Where orderid = ?)");
+         lines.setInt(1, orderid);
+         lines.setTimestamp(2, new Timestamp(entry.time));
+         lines.setArray(3, conn.createArrayOf("varchar", new LinkedHashSet<String>(entry.items).toArray()));
+         lines.setInt(4, orderid);
+         lines.executeUpdate();
+         lines.close();
+
+         PreparedStatement total = conn.prepareStatement(REPRICE);
+         total.setInt(1, orderid);
+         total.setInt(2, orderid);
+         total.executeUpdate();
+         total.close();
+
+         PreparedStatement mark = conn.prepareStatement("Insert Into JournalApplied (id, orderid, applied) Values (?, ?, Now())");
+         mark.setString(1, entry.id);
+         mark.setInt(2, orderid);
+         mark.executeUpdate();
+         mark.close();
+
+         conn.commit();
+         if (!missing.isEmpty())
+            dropped.add(String.format("offline order by %s sent as Order#%d without %s, no longer on the menu (see JournalDropped)", entry.login, orderid, missing));
+      } catch (SQLException e) {
+         conn.rollback();
+         throw e;
+      } finally {
+         conn.setAutoCommit(autoCommit);
+      }
+   }//end apply
+
+}//end OrderJournal
@@ -0,0 +1,380 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Query plan regression check for the SQL shapes behind LogIn, Menu,
+ * PlaceOrder, UpdateOrder, BrowseOrders and MarkAsPaid.
+ *
+ * Copies Users, Menu, Orders, ItemStatus, FavItems and the sales rollups
+ * (columns and indexes, with CREATE TABLE ... LIKE ... INCLUDING ALL, then
+ * their triggers) into a scratch schema, seeds it with a large synthetic
+ * history and runs EXPLAIN (ANALYZE, FORMAT JSON) on every shape of the
+ * catalog below, each inside a transaction that is rolled back.  A shape
+ * fails when
+ *
+ *    it sequentially scans a table it must reach through an index,
+ *    its plan gains a sequential scan the baseline did not have,
+ *    its estimated rows or its execution time grew more than
+ *    -Dplancheck.factor (default 2) times over the baseline.
+ *
+ * The baseline is the file given with --baseline (default
+ * plancheck.baseline), written with --update.  Exits 1 if any shape failed.
+ *
+ * Usage: java PlanCheck <dbname> <port> <user> [--orders N] [--baseline file] [--update] [--keep]
+ *
+ */
+public class PlanCheck {
+
+   private static final String SCHEMA = "plancheck";
+
+   private static final double FACTOR = Double.parseDouble(System.getProperty("plancheck.factor", "2"));
+
+   // slack below which estimates and timings are noise
+   private static final long ROWS_SLACK = 10;
+   private static final double MS_SLACK = 5;
+
+   private static final String[] TABLES = { "users", "menu", "orders", "itemstatus", "favitems", "salesdaily", "saleshourly", "salesitem" };
+
+   /*
+    * The query shapes, built from the statements of the classes that run
+    * them, with representative values.  $LOGIN is a customer with history,
+    * $ORDER an order of that customer, $ITEM a menu item, $DAYAGO and $NOW
+    * the last day.  The third field lists the tables that must not be
+    * sequentially scanned; Menu is a few hundred rows, where a sequential
+    * scan is a fair plan.  Parameters of prepared statements follow, an
+    * integer array as {a,b,c}, an integer as is, a timestamp as YYYY-MM-DD
+    * HH:MM:SS.
+    */
+   private static final String[][] CATALOG = {
+      { "login", String.format(Cafe.LOG_IN, "$LOGIN", "pw"), "users" },
+      { "menu.all", Cafe.ALL_MENU, "" },
+      { "menu.item", String.format(Cafe.MENU_ITEM, "$ITEM"), "" },
+      { "menu.update", String.format(Cafe.SET_MENU_PRICE, "3.5", "$ITEM"), "" },
+      { "menu.delete", String.format(Cafe.DELETE_MENU_ITEM, "$ITEM"), "" },
+      { "place.open", String.format(Cafe.OPEN_ORDER, "$ORDER"), "orders" },
+      { "place.draft", String.format(Cafe.DRAFT_ORDER, "$LOGIN"), "orders" },
+      { "place.new", String.format(Cafe.NEW_ORDER, "$LOGIN"), "" },
+      { "place.touch", String.format(Cafe.TOUCH_ORDER, "$ORDER"), "orders" },
+      { "place.order", String.format(Cafe.ORDER_BY_ID, "$ORDER"), "orders" },
+      { "place.add", String.format(Cafe.ADD_ITEM, "$ORDER", "$ITEM"), "" },
+      { "place.total", String.format(Cafe.SET_TOTAL, "7.5", "$ORDER"), "orders" },
+      { "place.items", String.format(Cafe.ORDER_ITEMS, "$ORDER"), "orders,itemstatus" },
+      { "place.line", String.format(Cafe.ORDER_LINE, "$ITEM", "$ORDER"), "itemstatus" },
+      { "place.remove", String.format(Cafe.REMOVE_ITEM, "$ITEM", "$ORDER"), "itemstatus" },
+      { "place.favorites", String.format(Cafe.ADD_ITEMS, "$ORDER", String.format(Cafe.FAVORITE_ITEMS, "$LOGIN")), "favitems,itemstatus" },
+      { "place.repeat", String.format(Cafe.ADD_ITEMS, "$ORDER", String.format(Cafe.LAST_ORDER_ITEMS, "$LOGIN", "$ORDER")), "orders,itemstatus" },
+      { "replay.total", OrderJournal.REPRICE, "orders,itemstatus", "$ORDER", "$ORDER" },
+      { "update.empty", String.format(Cafe.ORDER_LINES, "$ORDER"), "itemstatus" },
+      { "update.cancel", String.format(Cafe.CANCEL_ORDER, "$ORDER"), "orders,itemstatus" },
+      { "browse.unpaid", Cafe.UNPAID_TODAY, "orders" },
+      { "browse.last5", String.format(Cafe.LAST_ORDERS, "$LOGIN"), "orders,users" },
+      { "reap.cancelled", Maintenance.REAP_CANCELLED, "orders,itemstatus" },
+      { "purge.drafts", Maintenance.PURGE_DRAFTS, "itemstatus" },
+      { "paid.mark", String.format(Cafe.MARK_PAID, "t", "$ORDER"), "orders" },
+      { "paid.window", Cafe.SETTLE_BY_WINDOW, "orders,itemstatus", "$DAYAGO", "$NOW" },
+      { "paid.list", Cafe.SETTLE_BY_LIST, "orders,itemstatus", "{$ORDER,2,3}" },
+   };
+
+   /*
+    * What one EXPLAIN showed.
+    */
+   private static class Plan {
+      String shape = "";
+      long rows = 0;
+      double ms = 0;
+   }//end Plan
+
+   private static final Pattern NODE = Pattern.compile("\"Node Type\": \"([^\"]+)\"");
+   private static final Pattern RELATION = Pattern.compile("\"Relation Name\": \"([^\"]+)\"");
+   private static final Pattern INDEX = Pattern.compile("\"Index Name\": \"([^\"]+)\"");
+   private static final Pattern ROWS = Pattern.compile("\"Plan Rows\": (\\d+)");
+   private static final Pattern TIME = Pattern.compile("\"(?:Execution Time|Total Runtime)\": ([0-9.]+)");
+
+   public static void main(String[] args) {
+      if (args.length < 3) {
+         System.err.println("Usage: java PlanCheck <dbname> <port> <user> [--orders N] [--baseline file] [--update] [--keep]");
+         System.exit(2);
+      }
+      int orders = 200000;
+      String baseline = "plancheck.baseline";
+      boolean update = false, keep = false;
+      for (int i = 3; i < args.length; ++i) {
+         if (args[i].equals("--orders") && i + 1 < args.length)
+            orders = Integer.parseInt(args[++i]);
+         else if (args[i].equals("--baseline") && i + 1 < args.length)
+            baseline = args[++i];
+         else if (args[i].equals("--update"))
+            update = true;
+         else if (args[i].equals("--keep"))
+            keep = true;
+      }
+
+      Connection conn = null;
+      int status = 0;
+      try {
+         Class.forName("org.postgresql.Driver");
+         conn = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "123");
+         long start = System.nanoTime();
+         int users = Math.max(100, orders / 10);
+         seed(conn, orders, users, 200);
+         System.out.println(String.format("Seeded %d orders, %d users, 200 items in %.1f s.\n", orders, users, (System.nanoTime() - start) / 1e9));
+
+         Map<String, String> values = new HashMap<String, String>();
+         values.put("$LOGIN", "user" + users / 2);
+         values.put("$ORDER", Integer.toString(orders / 2 + 1));
+         values.put("$ITEM", "item17");
+         values.put("$DAYAGO", new Timestamp(System.currentTimeMillis() - 24L * 60 * 60 * 1000).toString());
+         values.put("$NOW", new Timestamp(System.currentTimeMillis()).toString());
+
+         Map<String, Plan> previous = update ? new HashMap<String, Plan>() : load(baseline);
+         Map<String, Plan> current = new HashMap<String, Plan>();
+         int failed = 0;
+         for (String[] shape : CATALOG) {
+            String sql = shape[1];
+            String[] params = new String[shape.length - 3];
+            for (int p = 0; p < params.length; ++p)
+               params[p] = shape[3 + p];
+            for (Map.Entry<String, String> value : values.entrySet()) {
+               sql = sql.replace(value.getKey(), value.getValue());
+               for (int p = 0; p < params.length; ++p)
+                  params[p] = params[p].replace(value.getKey(), value.getValue());
+            }
+            Plan plan = explain(conn, sql, params);
+            current.put(shape[0], plan);
+            String problem = check(shape, plan, previous.get(shape[0]));
+            if (problem != null)
+               ++failed;
+            System.out.println(String.format("%-16s %-4s %8d rows %9.3f ms  %s", shape[0], problem == null ? "ok" : "FAIL",
+               plan.rows, plan.ms, problem == null ? plan.shape : problem + " [" + plan.shape + "]"));
+         }
+
+         System.out.println(String.format("\n%d shape(s), %d failed.", CATALOG.length, failed));
+         if (update) {
+            save(baseline, current);
+            System.out.println("Baseline written to " + baseline + ".");
+         } else if (previous.isEmpty())
+            System.out.println("No baseline in " + baseline + ", only the index rules were checked (write one with --update).");
+         if (failed > 0)
+            status = 1;
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         status = 2;
+      } finally {
+         try {
+            if (conn != null) {
+               if (!keep)
+                  execute(conn, "Drop Schema If Exists " + SCHEMA + " Cascade");
+               conn.close();
+            }
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+      System.exit(status);
+   }//end main
+
+   private static void execute(Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         stmt.execute(sql);
+      } finally {
+         stmt.close();
+      }
+   }//end execute
+
+   /*
+    * Copies the tables with their indexes into the scratch schema and fills
+    * them: every customer has history, every 500th order is an empty draft,
+    * every 97th is canceled, the rest have three items and are spread 30
+    * seconds apart up to now.  The rollups are built from that history, then
+    * the triggers of the real tables are recreated on the copies, so writes
+    * are measured with the work they cause in production.  The copies draw
+    * order IDs from their own sequence.
+    */
+   private static void seed(Connection conn, int orders, int users, int items) throws SQLException {
+      execute(conn, "Drop Schema If Exists " + SCHEMA + " Cascade");
+      execute(conn, "Create Schema " + SCHEMA);
+      for (String table : TABLES)
+         execute(conn, String.format("Create Table %s.%s (Like public.%s Including All)", SCHEMA, table, table));
+      execute(conn, "Set search_path To " + SCHEMA + ", public");
+
+      execute(conn, String.format("Insert Into Menu Select 'item' || g, (array['Drinks','Sweets','Soup'])[1 + g %% 3], 1 + g %% 10, 'item number ' || g, '' From generate_series(1, %d) g", items));
+      execute(conn, String.format("Insert Into Users Select 'user' || g, lpad(g::text, 10, '0'), 'pw', '', 'Customer' From generate_series(1, %d) g", users));
+      execute(conn, String.format("Insert Into Orders Select g, 'user' || (1 + g %% %d), g %% 10 <> 0, Now() - (%d - g) * interval '30 seconds', case when g %% 500 = 0 then 0 else 3 * (1 + g %% 10) end, g %% 97 = 0 From generate_series(1, %d) g", users, orders, orders));
+      execute(conn, String.format("Insert Into ItemStatus Select o, 'item' || (1 + (o * 7 + k * 13) %% %d), Now(), '', '', 1 + (1 + (o * 7 + k * 13) %% %d) %% 10 From generate_series(1, %d) o, generate_series(0, 2) k Where o %% 500 <> 0", items, items, orders));
+      execute(conn, String.format("Insert Into FavItems Select 'user' || g, 'item' || (1 + g %% %d) From generate_series(1, %d) g", items, users));
+      execute(conn, "Insert Into SalesDaily Select timestamprecieved::date, count(*), sum(total) From Orders Where not cancelled Group By 1");
+      execute(conn, "Insert Into SalesHourly Select timestamprecieved::date, extract(hour From timestamprecieved), count(*), sum(total) From Orders Where not cancelled Group By 1, 2");
+      execute(conn, "Insert Into SalesItem Select I.lastUpdated::date, I.itemName, count(*), sum(I.price) From ItemStatus I, Orders O Where I.orderid = O.orderid and not O.cancelled Group By 1, 2");
+
+      execute(conn, String.format("Create Sequence %s.orders_orderid_seq Start With %d", SCHEMA, orders + 1));
+      execute(conn, String.format("Alter Table %s.orders Alter Column orderid Set Default nextval('%s.orders_orderid_seq')", SCHEMA, SCHEMA));
+      for (String table : TABLES) {
+         List<String> triggers = new ArrayList<String>();
+         Statement stmt = conn.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery(String.format("Select pg_get_triggerdef(oid) From pg_trigger Where tgrelid = 'public.%s'::regclass and not tgisinternal", table));
+            while (rs.next())
+               triggers.add(rs.getString(1));
+         } finally {
+            stmt.close();
+         }
+         // the trigger functions find the scratch tables (and sequence) first on the search path
+         for (String trigger : triggers)
+            execute(conn, trigger.replaceFirst(" ON (public\\.)?" + table + " ", " ON " + SCHEMA + "." + table + " "));
+      }
+      for (String table : TABLES)
+         execute(conn, "Analyze " + table);
+   }//end seed
+
+   /*
+    * Runs one shape under EXPLAIN ANALYZE in a transaction that is rolled
+    * back, once to warm the caches and then three times, keeping the best.
+    * The parameters are bound like the application binds them.
+    */
+   private static Plan explain(Connection conn, String sql, String[] params) throws SQLException {
+      Plan best = null;
+      conn.setAutoCommit(false);
+      try {
+         for (int run = 0; run < 4; ++run) {
+            PreparedStatement stmt = conn.prepareStatement("EXPLAIN (ANALYZE, FORMAT JSON) " + sql);
+            try {
+               for (int p = 0; p < params.length; ++p)
+                  bind(conn, stmt, p + 1, params[p]);
+               ResultSet rs = stmt.executeQuery();
+               StringBuilder json = new StringBuilder();
+               while (rs.next())
+                  json.append(rs.getString(1));
+               Plan plan = parse(json.toString());
+               if (run > 0 && (best == null || plan.ms < best.ms))
+                  best = plan;
+            } finally {
+               stmt.close();
+               conn.rollback();
+            }
+         }
+      } finally {
+         conn.setAutoCommit(true);
+      }
+      return best;
+   }//end explain
+
+   private static void bind(Connection conn, PreparedStatement stmt, int index, String value) throws SQLException {
+      if (value.matches("\\{[0-9,]*\\}")) {
+         List<Integer> ids = new ArrayList<Integer>();
+         for (String id : value.substring(1, value.length() - 1).split(","))
+            if (id.length() > 0)
+               ids.add(Integer.parseInt(id));
+         stmt.setArray(index, conn.createArrayOf("integer", ids.toArray()));
+      } else if (value.matches("-?[0-9]+"))
+         stmt.setInt(index, Integer.parseInt(value));
+      else
+         stmt.setTimestamp(index, Timestamp.valueOf(value));
+   }//end bind
+
+   private static Plan parse(String json) {
+      Plan plan = new Plan();
+      List<String> nodes = new ArrayList<String>();
+      Matcher node = NODE.matcher(json);
+      List<Integer> starts = new ArrayList<Integer>();
+      while (node.find())
+         starts.add(node.start());
+      starts.add(json.length());
+      for (int i = 0; i + 1 < starts.size(); ++i) {
+         // the part of the text up to the next node belongs to this node
+         String text = json.substring(starts.get(i), starts.get(i + 1));
+         Matcher type = NODE.matcher(text);
+         type.find();
+         Matcher relation = RELATION.matcher(text);
+         Matcher index = INDEX.matcher(text);
+         if (relation.find())
+            nodes.add(type.group(1) + "(" + relation.group(1) + ")");
+         else if (index.find())
+            nodes.add(type.group(1) + "(" + index.group(1) + ")");
+         else
+            nodes.add(type.group(1));
+      }
+      plan.shape = String.join(" > ", nodes);
+      Matcher rows = ROWS.matcher(json);
+      if (rows.find())
+         plan.rows = Long.parseLong(rows.group(1));
+      Matcher time = TIME.matcher(json);
+      if (time.find())
+         plan.ms = Double.parseDouble(time.group(1));
+      return plan;
+   }//end parse
+
+   /*
+    * @return what regressed, or null if the shape is fine
+    */
+   private static String check(String[] shape, Plan plan, Plan before) {
+      for (String table : shape[2].split(","))
+         if (table.length() > 0 && plan.shape.contains("Seq Scan(" + table + ")"))
+            return "sequential scan of " + table;
+      if (before == null)
+         return null;
+      if (plan.shape.split("Seq Scan", -1).length > before.shape.split("Seq Scan", -1).length)
+         return "new sequential scan, was " + before.shape;
+      if (plan.rows > Math.max(before.rows * FACTOR, before.rows + ROWS_SLACK))
+         return String.format("estimated rows %d, was %d", plan.rows, before.rows);
+      if (plan.ms > Math.max(before.ms * FACTOR, before.ms + MS_SLACK))
+         return String.format("%.3f ms, was %.3f ms", plan.ms, before.ms);
+      return null;
+   }//end check
+
+   private static Map<String, Plan> load(String path) throws IOException {
+      Map<String, Plan> plans = new HashMap<String, Plan>();
+      BufferedReader in;
+      try {
+         in = new BufferedReader(new FileReader(path));
+      } catch (IOException e) {
+         return plans;
+      }
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            String[] f = line.split(";", 4);
+            if (f.length < 4 || line.startsWith("#"))
+               continue;
+            Plan plan = new Plan();
+            plan.rows = Long.parseLong(f[1]);
+            plan.ms = Double.parseDouble(f[2]);
+            plan.shape = f[3];
+            plans.put(f[0], plan);
+         }
+      } finally {
+         in.close();
+      }
+      return plans;
+   }//end load
+
+   private static void save(String path, Map<String, Plan> plans) throws IOException {
+      PrintWriter out = new PrintWriter(new FileWriter(path));
+      try {
+         out.println("# shape;estimated rows;ms;plan");
+         for (String[] shape : CATALOG) {
+            Plan plan = plans.get(shape[0]);
+            out.println(String.format(java.util.Locale.ROOT, "%s;%d;%.3f;%s", shape[0], plan.rows, plan.ms, plan.shape));
+         }
+      } finally {
+         out.close();
+      }
+   }//end save
+
+}//end PlanCheck
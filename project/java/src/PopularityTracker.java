@@ -0,0 +1,319 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks what is selling right now.  Every order line added or removed bumps
+ * a striped LongAdder for the current time bucket, so concurrent sessions
+ * never contend on a lock.  Scores are the bucket counts decayed by age.
+ *
+ * ItemPopularity holds the decayed scores of every register together.  A
+ * background checkpoint adds what this register sold since its last
+ * checkpoint to the stored scores (decaying them to now first), takes those
+ * sales out of the local counters once committed, and reloads the table, so
+ * a register ranks by everyone's sales and a restarted one does not start
+ * from nothing.
+ *
+ */
+public class PopularityTracker {
+
+   // width of one time bucket and number of buckets kept, one hour in total
+   private static final long BUCKET_MS = 5 * 60 * 1000;
+   private static final int BUCKETS = 12;
+
+   // a sale counts half as much after this long
+   private static final double HALF_LIFE_MS = 15 * 60 * 1000;
+
+   // how often the scores are written to ItemPopularity
+   private static final long CHECKPOINT_MS = 60 * 1000;
+
+   /*
+    * The count of one item in one time bucket.
+    */
+   private static class Slot {
+      final long bucket;
+      final LongAdder count = new LongAdder();
+
+      Slot(long bucket) {
+         this.bucket = bucket;
+      }
+   }//end Slot
+
+   /*
+    * Ring of per bucket counters for a single item.  A slot whose bucket fell
+    * out of the window is replaced by a fresh one, never reset in place, so
+    * an add racing with the rollover is not wiped out.
+    */
+   private static class Counter {
+      final AtomicReferenceArray<Slot> slots = new AtomicReferenceArray<Slot>(BUCKETS);
+
+      void add(long bucket, long delta) {
+         int i = (int) (bucket % BUCKETS);
+         Slot slot = slots.get(i);
+         while (slot == null || slot.bucket < bucket) {
+            Slot fresh = new Slot(bucket);
+            if (slots.compareAndSet(i, slot, fresh)) {
+               slot = fresh;
+               break;
+            }
+            slot = slots.get(i);
+         }
+         slot.count.add(delta);
+      }
+
+      /*
+       * The decayed count, and with taken given, the slots and counts it
+       * was made of.
+       */
+      double score(long now, Map<Slot, Long> taken) {
+         long bucket = now / BUCKET_MS;
+         double score = 0;
+         for (int i = 0; i < BUCKETS; ++i) {
+            Slot slot = slots.get(i);
+            if (slot == null)
+               continue;
+            long age = bucket - slot.bucket;
+            if (age < 0 || age >= BUCKETS)
+               continue;
+            long count = slot.count.sum();
+            score += count * decay(age * BUCKET_MS);
+            if (taken != null && count != 0)
+               taken.put(slot, count);
+         }
+         return score;
+      }
+   }//end Counter
+
+   private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+   // scores of every register as of the last checkpoint, with the time they were read
+   private volatile Map<String, Double> restored = new HashMap<String, Double>();
+   private volatile long restoredAt = 0;
+
+   private final Cafe esql;
+   private ScheduledExecutorService checkpointer = null;
+   private Connection connection = null;
+
+   /**
+    * Creates a tracker whose checkpoints go to the database of the given Cafe.
+    *
+    * @param esql the Cafe to open the checkpoint connection from
+    */
+   public PopularityTracker(Cafe esql) {
+      this.esql = esql;
+   }
+
+   private static double decay(double ageMs) {
+      return Math.pow(0.5, ageMs / HALF_LIFE_MS);
+   }
+
+   /**
+    * Records order lines added (positive delta) or removed (negative delta).
+    *
+    * @param itemname the menu item
+    * @param delta the number of lines
+    */
+   public void record(String itemname, long delta) {
+      String name = itemname.trim();
+      Counter counter = counters.get(name);
+      if (counter == null) {
+         counter = new Counter();
+         Counter raced = counters.putIfAbsent(name, counter);
+         if (raced != null)
+            counter = raced;
+      }
+      counter.add(System.currentTimeMillis() / BUCKET_MS, delta);
+   }//end record
+
+   /**
+    * @param itemname the menu item
+    * @return the decayed popularity of the item, never negative
+    */
+   public double score(String itemname) {
+      String name = itemname.trim();
+      long now = System.currentTimeMillis();
+      double score = 0;
+      Counter counter = counters.get(name);
+      if (counter != null)
+         score += counter.score(now, null);
+      Double base = restored.get(name);
+      if (base != null)
+         score += base * decay(now - restoredAt);
+      return Math.max(score, 0);
+   }//end score
+
+   /**
+    * Orders menu rows by current popularity, keeping table order for ties.
+    *
+    * @param items menu rows with the item name in column MenuIndex.ITEMNAME
+    * @return a new list, most popular first
+    */
+   public List<String[]> trending(List<String[]> items) {
+      final Map<String[], Double> scores = new HashMap<String[], Double>();
+      for (String[] item : items)
+         scores.put(item, score(item[MenuIndex.ITEMNAME]));
+      List<String[]> result = new ArrayList<String[]>(items);
+      Collections.sort(result, new Comparator<String[]>() {
+         public int compare(String[] a, String[] b) {
+            return Double.compare(scores.get(b), scores.get(a));
+         }
+      });
+      return result;
+   }//end trending
+
+   /**
+    * Loads the last checkpoint and starts checkpointing in the background.
+    * Failures are reported and otherwise ignored, the tracker then simply
+    * starts from zero.
+    */
+   public synchronized void start() {
+      if (checkpointer != null)
+         return;
+      try {
+         restore();
+      } catch (SQLException e) {
+         System.err.println("Popularity checkpoint not loaded: " + e.getMessage());
+      }
+      checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "popularity-checkpoint");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      checkpointer.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            DbScheduler.use(DbScheduler.BACKGROUND);
+            try {
+               DbScheduler.admit();
+               try {
+                  checkpoint();
+               } finally {
+                  DbScheduler.release();
+               }
+            } catch (SQLException e) {
+               // keep counting in memory, the next checkpoint will try again
+               if (Cafe.isConnectionError(e))
+                  closeConnection();
+            }
+         }
+      }, CHECKPOINT_MS, CHECKPOINT_MS, TimeUnit.MILLISECONDS);
+   }//end start
+
+   /**
+    * Stops the background thread after a final checkpoint.
+    */
+   public synchronized void stop() {
+      if (checkpointer == null)
+         return;
+      checkpointer.shutdownNow();
+      checkpointer = null;
+      try {
+         checkpoint();
+      } catch (SQLException e) {
+         // ignored.
+      }
+      closeConnection();
+   }//end stop
+
+   private Connection connection() throws SQLException {
+      if (connection == null)
+         connection = esql.openConnection();
+      return connection;
+   }
+
+   private synchronized void closeConnection() {
+      try {
+         if (connection != null)
+            connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+      connection = null;
+   }//end closeConnection
+
+   private void restore() throws SQLException {
+      Statement stmt = connection().createStatement();
+      stmt.setQueryTimeout(DbScheduler.timeout());
+      try {
+         ResultSet rs = stmt.executeQuery("Select itemName, score, extract(epoch from Now() - updated) * 1000 From ItemPopularity");
+         long now = System.currentTimeMillis();
+         Map<String, Double> scores = new HashMap<String, Double>();
+         while (rs.next())
+            scores.put(rs.getString(1).trim(), rs.getDouble(2) * decay(rs.getDouble(3)));
+         restoredAt = now;
+         restored = scores;
+      } finally {
+         stmt.close();
+      }
+   }//end restore
+
+   /*
+    * Adds this register's sales since the last checkpoint to the stored
+    * scores in one transaction, then takes them out of the local counters
+    * and reloads everyone's scores.  Items renamed or deleted from the menu
+    * meanwhile are dropped by the join.  Servers before 9.5 have no ON
+    * CONFLICT, there the table is locked against other checkpoints instead.
+    */
+   private synchronized void checkpoint() throws SQLException {
+      long now = System.currentTimeMillis();
+      Map<Slot, Long> taken = new HashMap<Slot, Long>();
+      StringBuilder values = new StringBuilder();
+      for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+         Map<Slot, Long> slots = new HashMap<Slot, Long>();
+         double delta = entry.getValue().score(now, slots);
+         if (Math.abs(delta) < 0.01)
+            continue;
+         taken.putAll(slots);
+         if (values.length() > 0)
+            values.append(',');
+         values.append(String.format(Locale.ROOT, "('%s',%f)", entry.getKey().replace("'", "''"), delta));
+      }
+
+      if (values.length() > 0) {
+         String decayed = String.format(Locale.ROOT, "P.score * power(0.5, extract(epoch from Now() - P.updated) * 1000 / %f)", HALF_LIFE_MS);
+         Connection conn = connection();
+         Statement stmt = conn.createStatement();
+         stmt.setQueryTimeout(DbScheduler.timeout());
+         try {
+            conn.setAutoCommit(false);
+            if (conn.getMetaData().getDatabaseMajorVersion() * 100 + conn.getMetaData().getDatabaseMinorVersion() >= 905)
+               stmt.execute("Insert Into ItemPopularity As P (itemName, score, updated) Select M.itemName, V.delta, Now() From (Values " + values + ") V(itemName, delta), Menu M Where M.itemName = V.itemName" +
+                  " On Conflict (itemName) Do Update Set score = " + decayed + " + excluded.score, updated = Now()");
+            else {
+               stmt.execute("Lock Table ItemPopularity In Share Row Exclusive Mode");
+               stmt.execute("With V(itemName, delta) As (Values " + values + "), " +
+                  "changed As (Update ItemPopularity P Set score = " + decayed + " + V.delta, updated = Now() From V Where P.itemName = V.itemName Returning P.itemName) " +
+                  "Insert Into ItemPopularity (itemName, score, updated) Select M.itemName, V.delta, Now() From V, Menu M Where M.itemName = V.itemName and M.itemName not in (Select itemName From changed)");
+            }
+            conn.commit();
+         } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+         } finally {
+            stmt.close();
+            conn.setAutoCommit(true);
+         }
+         // committed, so these sales now live in the table; later adds stay counted
+         for (Map.Entry<Slot, Long> slot : taken.entrySet())
+            slot.getKey().count.add(-slot.getValue());
+      }
+      restore();
+   }//end checkpoint
+
+}//end PopularityTracker
@@ -0,0 +1,234 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Routes read-only, staleness tolerant queries to read replicas.  Replica
+ * URLs come from -Dcafe.replicas (comma separated JDBC URLs, same user and
+ * password as the primary).  Each replica's replay lag is sampled at most
+ * once a second; replicas that are down or lag more than
+ * -Dcafe.replicaMaxLagMs (default 5000) are skipped and the read goes to
+ * the primary.  Reads of the session's own data stay on the primary until
+ * the replica has replayed the WAL position the primary was at when the
+ * session's last write committed.
+ *
+ */
+public class ReadRouter {
+
+   private static final long MAX_LAG_MS = Long.getLong("cafe.replicaMaxLagMs", 5000);
+
+   // how long a lag sample is trusted
+   private static final long LAG_CHECK_MS = 1000;
+
+   // seconds a probe of a replica or of the primary's WAL position may take
+   private static final int PROBE_TIMEOUT_S = 1;
+
+   // a replica that failed is left alone this long
+   private static final long RETRY_DOWN_MS = 10000;
+
+   /*
+    * One configured replica and what we last saw of it.
+    */
+   private static class Replica {
+      final String url;
+      Connection connection = null;
+      long lagMs = Long.MAX_VALUE;
+      long checkedAt = 0;
+      long downUntil = 0;
+
+      Replica(String url) {
+         this.url = url;
+      }
+   }//end Replica
+
+   private final Cafe esql;
+   private final List<Replica> replicas = new ArrayList<Replica>();
+   private int next = 0;
+
+   // primary WAL position at this session's last commit, null before the
+   // first write, UNKNOWN when it could not be read
+   private volatile String lastWriteLsn = null;
+   private static final String UNKNOWN = "";
+
+   /**
+    * Creates a router for the replicas configured in -Dcafe.replicas.
+    *
+    * @param esql the Cafe whose credentials are used for the replicas
+    */
+   public ReadRouter(Cafe esql) {
+      this.esql = esql;
+      String urls = System.getProperty("cafe.replicas", "");
+      for (String url : urls.split(","))
+         if (url.trim().length() > 0)
+            replicas.add(new Replica(url.trim()));
+   }//end ReadRouter
+
+   /**
+    * @return true if any replica is configured
+    */
+   public boolean enabled() {
+      return !replicas.isEmpty();
+   }
+
+   /**
+    * Records that the session just committed a write on the primary, by
+    * reading the primary's current WAL position.  Own data reads go to the
+    * primary until a replica has replayed up to it.
+    *
+    * @param primary the connection the write committed on
+    */
+   public void wrote(Connection primary) {
+      if (replicas.isEmpty())
+         return;
+      try {
+         boolean wal = primary.getMetaData().getDatabaseMajorVersion() >= 10;
+         Statement stmt = primary.createStatement();
+         try {
+            stmt.setQueryTimeout(PROBE_TIMEOUT_S);
+            ResultSet rs = stmt.executeQuery(wal ? "Select pg_current_wal_lsn()::text" : "Select pg_current_xlog_location()::text");
+            rs.next();
+            lastWriteLsn = rs.getString(1);
+         } finally {
+            stmt.close();
+         }
+      } catch (SQLException e) {
+         // the write went through, only its position is unknown
+         lastWriteLsn = UNKNOWN;
+      }
+   }//end wrote
+
+   /**
+    * Picks a replica connection for a read, round robin over the healthy
+    * replicas.
+    *
+    * @param ownData true if the read must see the session's own writes
+    * @return a replica connection, or null if the read should go to the primary
+    */
+   public synchronized Connection route(boolean ownData) {
+      long now = System.currentTimeMillis();
+      for (int tried = 0; tried < replicas.size(); ++tried) {
+         Replica replica = replicas.get(next);
+         next = (next + 1) % replicas.size();
+         if (replica.downUntil > now)
+            continue;
+         try {
+            if (replica.connection == null)
+               replica.connection = esql.openConnection(replica.url);
+            if (now - replica.checkedAt > LAG_CHECK_MS) {
+               replica.lagMs = lag(replica.connection);
+               replica.checkedAt = now;
+            }
+         } catch (SQLException e) {
+            markDown(replica);
+            continue;
+         }
+         if (replica.lagMs > MAX_LAG_MS)
+            continue;
+         if (ownData) {
+            String lsn = lastWriteLsn;
+            if (lsn == UNKNOWN)
+               return null;
+            try {
+               if (lsn != null && !replayed(replica.connection, lsn))
+                  continue;
+            } catch (SQLException e) {
+               markDown(replica);
+               continue;
+            }
+         }
+         return replica.connection;
+      }
+      return null;
+   }//end route
+
+   /**
+    * Takes a replica out of rotation after a failed read.
+    *
+    * @param conn the connection returned by route
+    */
+   public synchronized void failed(Connection conn) {
+      for (Replica replica : replicas)
+         if (conn != null && replica.connection == conn)
+            markDown(replica);
+   }//end failed
+
+   private static void markDown(Replica replica) {
+      try {
+         if (replica.connection != null)
+            replica.connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+      replica.connection = null;
+      replica.downUntil = System.currentTimeMillis() + RETRY_DOWN_MS;
+   }//end markDown
+
+   /*
+    * True if the standby has replayed the primary's WAL up to lsn.  A server
+    * that is not a standby counts as current, as in lag().
+    */
+   private static boolean replayed(Connection conn, String lsn) throws SQLException {
+      boolean wal = conn.getMetaData().getDatabaseMajorVersion() >= 10;
+      String query = wal
+         ? "Select not pg_is_in_recovery() or pg_wal_lsn_diff(pg_last_wal_replay_lsn(), ?::pg_lsn) >= 0"
+         : "Select not pg_is_in_recovery() or pg_xlog_location_diff(pg_last_xlog_replay_location(), ?) >= 0";
+      PreparedStatement stmt = conn.prepareStatement(query);
+      try {
+         stmt.setQueryTimeout(PROBE_TIMEOUT_S);
+         stmt.setString(1, lsn);
+         ResultSet rs = stmt.executeQuery();
+         rs.next();
+         // null while the standby has not replayed anything yet
+         return rs.getBoolean(1);
+      } finally {
+         stmt.close();
+      }
+   }//end replayed
+
+   /*
+    * Replay lag of a standby in milliseconds.  A standby that has replayed
+    * everything it received counts as current, since the replay timestamp
+    * stops moving while the primary is idle.
+    */
+   private static long lag(Connection conn) throws SQLException {
+      boolean wal = conn.getMetaData().getDatabaseMajorVersion() >= 10;
+      String query = wal
+         ? "Select pg_is_in_recovery(), pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn(), extract(epoch from Now() - pg_last_xact_replay_timestamp()) * 1000"
+         : "Select pg_is_in_recovery(), pg_last_xlog_receive_location() = pg_last_xlog_replay_location(), extract(epoch from Now() - pg_last_xact_replay_timestamp()) * 1000";
+      Statement stmt = conn.createStatement();
+      try {
+         stmt.setQueryTimeout(PROBE_TIMEOUT_S);
+         ResultSet rs = stmt.executeQuery(query);
+         rs.next();
+         // not a standby at all, e.g. a second primary used as a stand-in
+         if (!rs.getBoolean(1))
+            return 0;
+         if (rs.getBoolean(2))
+            return 0;
+         double lag = rs.getDouble(3);
+         return rs.wasNull() ? Long.MAX_VALUE : (long) Math.max(lag, 0);
+      } finally {
+         stmt.close();
+      }
+   }//end lag
+
+   /**
+    * Closes every replica connection.
+    */
+   public synchronized void close() {
+      for (Replica replica : replicas) {
+         try {
+            if (replica.connection != null)
+               replica.connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+         replica.connection = null;
+      }
+   }//end close
+
+}//end ReadRouter
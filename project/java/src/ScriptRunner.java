@@ -0,0 +1,331 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Headless command mode.  Reads a script of back-office operations, one per
+ * line with ';' separated fields like the data files, and runs them in
+ * batches: every batch is sent as one pipelined JDBC batch inside a single
+ * transaction.  If a batch fails it is rolled back and its commands are
+ * retried one at a time, so one bad line only fails itself.  mark-paid and
+ * mark-unpaid use RETURNING inside the batch transaction, so the audit log
+ * only gets the orders they actually changed.  A result line with timing is printed
+ * for every command, followed by a summary.
+ *
+ * Commands:
+ *    add-item;itemname;type;price;description;imageurl
+ *    update-item;itemname;itemname|type|price|description|imageurl;value
+ *    set-price;itemname;price
+ *    delete-item;itemname
+ *    place-order;login;item1,item2,...
+ *    mark-paid;orderid[,orderid...]
+ *    mark-unpaid;orderid[,orderid...]
+ *    set-type;login;type
+ *
+ * Blank lines and lines starting with '#' are ignored.
+ *
+ */
+public class ScriptRunner {
+
+   // commands per transaction, override with -Dcafe.batch=N
+   private static final int BATCH = Integer.getInteger("cafe.batch", 500);
+
+   /*
+    * One parsed script line and what became of it.
+    */
+   private static class Command {
+      final int line;
+      final String text;
+      final List<String> sql = new ArrayList<String>();
+      // which statement's row count is reported, and how many rows it should touch
+      int reported = 0;
+      int expected = 1;
+      // the table whose rows the reported statement changes
+      String table = "menu";
+      // the AuditLog action the command is recorded as, 0 if none, and what it changes
+      int audit = 0;
+      String subject = "";
+      // the reported statement's RETURNING rows are the keys it changed, they become the subject
+      boolean returning = false;
+
+      boolean global() {
+         // Menu and Users are written to the global database when there are several stores
+         return table.equals("menu") || table.equals("users");
+      }
+      String status = null;
+      String result = null;
+      double millis = 0;
+
+      Command(int line, String text) {
+         this.line = line;
+         this.text = text;
+      }
+   }//end Command
+
+   private final Cafe esql;
+   private int batches = 0;
+   private int retried = 0;
+
+   private ScriptRunner(Cafe esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Runs a script file against the database and prints the report.
+    *
+    * @param esql the connected Cafe
+    * @param path the script file
+    * @return the number of commands that failed
+    * @throws java.io.IOException when the script cannot be read
+    */
+   public static int run(Cafe esql, String path) throws IOException {
+      List<Command> commands = new ArrayList<Command>();
+      BufferedReader reader = new BufferedReader(new FileReader(path));
+      try {
+         String text;
+         int line = 0;
+         while ((text = reader.readLine()) != null) {
+            ++line;
+            if (text.trim().length() == 0 || text.trim().startsWith("#"))
+               continue;
+            Command command = new Command(line, text.trim());
+            try {
+               parse(command);
+            } catch (IllegalArgumentException e) {
+               command.status = "INVALID";
+               command.result = e.getMessage();
+            }
+            commands.add(command);
+         }
+      } finally {
+         reader.close();
+      }
+
+      ScriptRunner runner = new ScriptRunner(esql);
+      long start = System.nanoTime();
+      // with one database every batch may mix Menu, Users and order commands
+      boolean split = esql.stores.enabled();
+      List<Command> batch = new ArrayList<Command>();
+      for (Command command : commands) {
+         if (command.status != null)
+            continue;
+         // commands run in file order, a batch ends where the target database changes
+         if (split && !batch.isEmpty() && batch.get(0).global() != command.global()) {
+            runner.runBatch(batch);
+            batch.clear();
+         }
+         batch.add(command);
+         if (batch.size() == BATCH) {
+            runner.runBatch(batch);
+            batch.clear();
+         }
+      }
+      if (!batch.isEmpty())
+         runner.runBatch(batch);
+      double elapsed = (System.nanoTime() - start) / 1e6;
+
+      int failed = 0;
+      for (Command command : commands) {
+         if (!command.status.equals("OK"))
+            ++failed;
+         System.out.println(String.format("line %-5d %-8s %8.3f ms  %-40.40s %s",
+            command.line, command.status, command.millis, command.text, command.result));
+      }
+      System.out.println(String.format("\n%d command(s), %d ok, %d failed, %d batch(es), %d retried singly, %.1f ms total (%.0f commands/s)\n",
+         commands.size(), commands.size() - failed, failed, runner.batches, runner.retried, elapsed,
+         elapsed > 0 ? commands.size() * 1000 / elapsed : 0.0));
+      return failed;
+   }//end run
+
+   /*
+    * Sends a whole batch as one transaction, falling back to one transaction
+    * per command if anything in it fails.
+    */
+   private int[] transaction(List<Command> batch, List<String> sql) throws SQLException {
+      String[] statements = sql.toArray(new String[0]);
+      Map<Integer, List<String>> returned = new HashMap<Integer, List<String>>();
+      int at = 0;
+      for (Command command : batch) {
+         if (command.returning)
+            returned.put(at + command.reported, new ArrayList<String>());
+         at += command.sql.size();
+      }
+      int[] counts = batch.get(0).global() ? esql.executeGlobalTransaction(returned, statements)
+                                           : esql.executeTransaction(returned, statements);
+      // only what was committed becomes a subject
+      at = 0;
+      for (Command command : batch) {
+         if (command.returning)
+            command.subject = String.join(",", returned.get(at + command.reported));
+         at += command.sql.size();
+      }
+      return counts;
+   }
+
+   private void runBatch(List<Command> batch) {
+      List<String> sql = new ArrayList<String>();
+      for (Command command : batch)
+         sql.addAll(command.sql);
+      ++batches;
+      long start = System.nanoTime();
+      try {
+         int[] counts = transaction(batch, sql);
+         double each = (System.nanoTime() - start) / 1e6 / batch.size();
+         int at = 0;
+         for (Command command : batch) {
+            finish(command, counts[at + command.reported], each);
+            esql.maintenance.changed(command.table, counts[at + command.reported]);
+            audit(command);
+            at += command.sql.size();
+         }
+      } catch (SQLException e) {
+         for (Command command : batch) {
+            ++retried;
+            long single = System.nanoTime();
+            try {
+               int[] counts = transaction(Collections.singletonList(command), command.sql);
+               finish(command, counts[command.reported], (System.nanoTime() - single) / 1e6);
+               esql.maintenance.changed(command.table, counts[command.reported]);
+               audit(command);
+            } catch (SQLException failure) {
+               command.millis = (System.nanoTime() - single) / 1e6;
+               command.status = "FAILED";
+               command.result = failure.getMessage().replace('\n', ' ');
+            }
+         }
+      }
+   }//end runBatch
+
+   /*
+    * Records a command that changed something sensitive in the audit log,
+    * orders one record per orderid the update returned.
+    */
+   private void audit(Command command) {
+      if (command.audit == 0 || command.status.equals("FAILED"))
+         return;
+      String detail = String.format("script line %d: %s", command.line, command.text);
+      if (command.audit == AuditLog.ORDER_PAID || command.audit == AuditLog.ORDER_UNPAID) {
+         for (String id : command.subject.split(","))
+            if (id.length() > 0)
+               esql.audit(command.audit, Integer.parseInt(id), "", detail);
+      }
+      else
+         esql.audit(command.audit, 0, command.subject, detail);
+   }//end audit
+
+   private static void finish(Command command, int rows, double millis) {
+      command.millis = millis;
+      command.status = rows >= command.expected ? "OK" : (rows > 0 ? "PARTIAL" : "FAILED");
+      command.result = rows >= command.expected ? String.format("%d row(s)", rows)
+                                                : String.format("%d of %d row(s) matched", rows, command.expected);
+   }//end finish
+
+   private static String quote(String value) {
+      return value.trim().replace("'", "''");
+   }
+
+   private static String idList(String value) {
+      StringBuilder ids = new StringBuilder();
+      for (String id : value.split(",")) {
+         try {
+            Integer.parseInt(id.trim());
+         } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad orderid " + id.trim());
+         }
+         if (ids.length() > 0)
+            ids.append(',');
+         ids.append(id.trim());
+      }
+      return ids.toString();
+   }//end idList
+
+   private static void expect(String[] fields, int count) {
+      if (fields.length != count)
+         throw new IllegalArgumentException(String.format("expected %d fields, got %d", count, fields.length));
+   }
+
+   /*
+    * Turns a script line into the SQL that performs it.
+    */
+   private static void parse(Command command) {
+      String[] f = command.text.split(";", -1);
+      String op = f[0].trim().toLowerCase();
+      if (op.equals("add-item")) {
+         expect(f, 6);
+         command.sql.add(String.format("Insert Into Menu (itemname, type, price, description, imageurl )VALUES ('%s','%s','%s','%s','%s')",
+            quote(f[1]), quote(f[2]), quote(f[3]), quote(f[4]), quote(f[5])));
+         command.audit = AuditLog.MENU_ADD;
+         command.subject = f[1].trim();
+      }
+      else if (op.equals("update-item")) {
+         expect(f, 4);
+         String field = f[2].trim().toLowerCase();
+         if (!field.matches("itemname|type|price|description|imageurl"))
+            throw new IllegalArgumentException("unknown field " + field);
+         command.sql.add(String.format("Update Menu SET %s = '%s' Where itemname = '%s'", field, quote(f[3]), quote(f[1])));
+         command.audit = AuditLog.MENU_UPDATE;
+         command.subject = f[1].trim();
+      }
+      else if (op.equals("set-price")) {
+         expect(f, 3);
+         command.sql.add(String.format(Cafe.SET_MENU_PRICE, quote(f[2]), quote(f[1])));
+         command.audit = AuditLog.MENU_UPDATE;
+         command.subject = f[1].trim();
+      }
+      else if (op.equals("delete-item")) {
+         expect(f, 2);
+         command.sql.add(String.format(Cafe.DELETE_MENU_ITEM, quote(f[1])));
+         command.audit = AuditLog.MENU_DELETE;
+         command.subject = f[1].trim();
+      }
+      else if (op.equals("place-order")) {
+         expect(f, 3);
+         Set<String> items = new LinkedHashSet<String>();
+         for (String item : f[2].split(","))
+            if (item.trim().length() > 0 && !items.add(quote(item)))
+               throw new IllegalArgumentException("item listed twice: " + item.trim());
+         if (items.isEmpty())
+            throw new IllegalArgumentException("no items");
+         // all or nothing: every statement only acts if every item is on the menu, and the menu
+         // rows stay locked until commit so the three statements see the same answer
+         String list = String.join(",", items);
+         String allOnMenu = String.format("(Select count(*) From (Select 1 From Menu Where itemName = ANY (string_to_array('%s', ',')) For Share) M) = %d", list, items.size());
+         // the order trigger draws the orderid, so currval names it for the rest of the command
+         command.sql.add(String.format("Insert Into Orders(login, paid) Select '%s','f' Where %s", quote(f[1]), allOnMenu));
+         command.sql.add(String.format("insert into ItemStatus (orderid,itemName,lastUpdated,status,comments) Select currval('orders_orderid_seq'), M.itemName, Now(), '', '' From Menu M Where M.itemName = ANY (string_to_array('%s', ',')) and %s",
+            list, allOnMenu));
+         command.sql.add(String.format("Update orders set total = (Select coalesce(sum(M.price),0) From ItemStatus I, Menu M Where I.itemName = M.itemName and I.orderid = currval('orders_orderid_seq')) where orderid = currval('orders_orderid_seq') and %s", allOnMenu));
+         command.reported = 1;
+         command.expected = items.size();
+         command.table = "itemstatus";
+      }
+      else if (op.equals("mark-paid") || op.equals("mark-unpaid")) {
+         expect(f, 2);
+         String ids = idList(f[1]);
+         command.sql.add(String.format("Update orders set paid = '%s' where not cancelled and orderid = ANY ('{%s}'::integer[]) Returning orderid", op.equals("mark-paid") ? "t" : "f", ids));
+         command.expected = ids.split(",").length;
+         command.table = "orders";
+         command.returning = true;
+         command.audit = op.equals("mark-paid") ? AuditLog.ORDER_PAID : AuditLog.ORDER_UNPAID;
+         command.subject = ids;
+      }
+      else if (op.equals("set-type")) {
+         expect(f, 3);
+         command.sql.add(String.format("Update Users Set type= '%s' Where login = '%s'", quote(f[2]), quote(f[1])));
+         command.table = "users";
+         command.audit = AuditLog.USER_TYPE;
+         command.subject = f[1].trim();
+      }
+      else
+         throw new IllegalArgumentException("unknown command " + op);
+   }//end parse
+
+}//end ScriptRunner
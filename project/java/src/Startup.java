@@ -0,0 +1,152 @@
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Overlaps startup work with the greeting and the first prompts.  The JDBC
+ * driver is loaded and the connection opened on a background thread while
+ * the main menu waits for input; once connected, the same thread loads the
+ * menu index and runs each hot query shape once on the session connection
+ * before handing it over, so that backend has its catalog caches loaded, the
+ * pages behind the queries are cached and the JIT is warm before the first
+ * customer orders.  Startup
+ * milestones are kept relative to JVM start and the time to the first
+ * placed order is reported once.
+ *
+ * Pair with a class-data-sharing archive (see compile.bat) to also skip
+ * most class loading and verification.
+ *
+ */
+public class Startup {
+
+   // when the JVM was launched, milestones are reported relative to this
+   private static final long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+   private static volatile long connectedAt = -1;
+   private static volatile long warmAt = -1;
+   private static volatile boolean ordered = false;
+
+   // completes once the caches are warm, whether or not warming worked
+   private static final CompletableFuture<Void> warmed = new CompletableFuture<Void>();
+
+   // the query shapes behind log in, PlaceOrder and UpdateOrder
+   private static final String[] HOT = {
+      "SELECT * FROM USERS WHERE login = '' AND password = ''",
+      "Select * From Orders where login = '' and Total = '0.0' and not cancelled",
+      "Select * From Menu Where itemname = ''",
+      "select * from itemstatus where orderid in (select orderid from orders where orderid = '-1')",
+   };
+
+   private static long sinceStart() {
+      return System.currentTimeMillis() - jvmStart;
+   }
+
+   /**
+    * Starts connecting in the background.
+    *
+    * @param dbname the name of the database
+    * @param dbport the port of the database server
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @return the Cafe, once connected (or working offline)
+    */
+   public static CompletableFuture<Cafe> boot(final String dbname, final String dbport, final String user, final String passwd) {
+      CompletableFuture<Cafe> booting = CompletableFuture.supplyAsync(new Supplier<Cafe>() {
+         public Cafe get() {
+            try {
+               // the postgres JDBC driver registers itself (JDBC 4), DriverManager finds it
+               Cafe esql = new Cafe(dbname, dbport, user, passwd, false);
+               if (!esql.isOffline()) {
+                  connectedAt = sinceStart();
+                  // the main thread only gets the connection once it is warm
+                  warm(esql);
+               }
+               return esql;
+            } catch (Exception e) {
+               throw new CompletionException(e);
+            } finally {
+               warmed.complete(null);
+            }
+         }
+      });
+      return booting;
+   }//end boot
+
+   /**
+    * Waits for the connection started by boot.
+    *
+    * @param booting the future returned by boot
+    * @return the connected Cafe
+    * @throws java.lang.Exception the failure that stopped the connection
+    */
+   public static Cafe ready(CompletableFuture<Cafe> booting) throws Exception {
+      try {
+         return booting.join();
+      } catch (CompletionException e) {
+         if (e.getCause() instanceof Exception)
+            throw (Exception) e.getCause();
+         throw e;
+      }
+   }//end ready
+
+   /*
+    * Loads the menu index and runs the hot query shapes once on the session
+    * connection, before boot hands it over.  Nothing here is required, so
+    * failures are ignored.
+    */
+   private static void warm(Cafe esql) {
+      DbScheduler.use(DbScheduler.BACKGROUND);
+      try {
+         DbScheduler.admit();
+         try {
+            Statement stmt = esql.connection().createStatement();
+            stmt.setQueryTimeout(DbScheduler.timeout());
+            try {
+               esql.primeMenuIndex(StoreRouter.Result.read(stmt.executeQuery(Cafe.ALL_MENU)).rows);
+               esql.getMenuIndex().search("coffee");
+               for (String query : HOT)
+                  stmt.executeQuery(query).close();
+            } finally {
+               stmt.close();
+            }
+         } finally {
+            DbScheduler.release();
+         }
+         warmAt = sinceStart();
+      } catch (SQLException e) {
+         // a cold cache is only slower
+      } finally {
+         DbScheduler.use(DbScheduler.BROWSE);
+      }
+   }//end warm
+
+   /**
+    * Waits until warming is over, for the --warmup training run.
+    */
+   public static void awaitWarm() {
+      warmed.join();
+   }
+
+   /**
+    * Records a placed order, and reports the time to the first one.
+    */
+   public static void orderPlaced() {
+      if (ordered)
+         return;
+      ordered = true;
+      System.out.println(String.format("[Time to first order: %d ms after start; %s]\n", sinceStart(), report()));
+   }//end orderPlaced
+
+   /**
+    * @return the startup milestones reached so far
+    */
+   public static String report() {
+      return String.format("connected at %s, caches warm at %s",
+         connectedAt < 0 ? "-" : connectedAt + " ms",
+         warmAt < 0 ? "-" : warmAt + " ms");
+   }//end report
+
+}//end Startup
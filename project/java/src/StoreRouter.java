@@ -0,0 +1,349 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Store aware routing for several locations served by one application tier.
+ * Orders and ItemStatus are sharded by store: every store has its own
+ * database, listed in -Dcafe.stores (comma separated JDBC URLs, the store ID
+ * is the position in the list) and this register belongs to store
+ * -Dcafe.store (default 0).  Menu and Users are global: they are written to
+ * the <dbname> <port> database given on the command line and replicated to
+ * every store database, where the registers read them.
+ *
+ * Order IDs are interleaved across stores (see shard_setup.sql), so store
+ * k of n only draws IDs with (orderid - 1) % n = k and every order ID names
+ * its store.  Cross-store manager reports scatter the same query to every
+ * store concurrently and gather the rows.
+ *
+ * Without -Dcafe.stores there is a single store and everything stays on the
+ * command line database.
+ *
+ */
+public class StoreRouter {
+
+   /**
+    * Rows of a query, gathered from every store or read back from a
+    * Cafe.executeQueries round-trip, with helpers to merge them.
+    */
+   public static class Result {
+      public final List<String> columns;
+      public final List<List<String>> rows;
+
+      Result(List<String> columns, List<List<String>> rows) {
+         this.columns = columns;
+         this.rows = rows;
+      }
+
+      /**
+       * Reads a whole result set.
+       *
+       * @param rs the result set, read to its end
+       * @return its column names and rows
+       * @throws java.sql.SQLException when reading failed
+       */
+      static Result read(ResultSet rs) throws SQLException {
+         ResultSetMetaData rsmd = rs.getMetaData();
+         List<String> columns = new ArrayList<String>();
+         for (int i = 1; i <= rsmd.getColumnCount(); ++i)
+            columns.add(rsmd.getColumnName(i));
+         List<List<String>> rows = new ArrayList<List<String>>();
+         while (rs.next()) {
+            List<String> row = new ArrayList<String>();
+            for (int i = 1; i <= columns.size(); ++i)
+               row.add(rs.getString(i));
+            rows.add(row);
+         }
+         return new Result(columns, rows);
+      }//end read
+
+      /**
+       * Merges the rows whose first keys columns are equal, summing the
+       * other columns.
+       *
+       * @param keys the number of leading key columns
+       * @return the merged rows, in order of first appearance
+       */
+      public Result sum(int keys) {
+         Map<List<String>, BigDecimal[]> merged = new LinkedHashMap<List<String>, BigDecimal[]>();
+         for (List<String> row : rows) {
+            List<String> key = row.subList(0, keys);
+            BigDecimal[] sums = merged.get(key);
+            if (sums == null) {
+               sums = new BigDecimal[row.size() - keys];
+               for (int i = 0; i < sums.length; ++i)
+                  sums[i] = BigDecimal.ZERO;
+               merged.put(key, sums);
+            }
+            for (int i = 0; i < sums.length; ++i)
+               sums[i] = sums[i].add(new BigDecimal(row.get(keys + i).trim()));
+         }
+         List<List<String>> summed = new ArrayList<List<String>>();
+         for (Map.Entry<List<String>, BigDecimal[]> entry : merged.entrySet()) {
+            List<String> row = new ArrayList<String>(entry.getKey());
+            for (BigDecimal value : entry.getValue())
+               row.add(value.toPlainString());
+            summed.add(row);
+         }
+         return new Result(columns, summed);
+      }//end sum
+
+      /**
+       * Sorts the rows by one column, numerically if its values are numbers.
+       *
+       * @param column the column to sort by
+       * @param descending true for largest first
+       * @return this result
+       */
+      public Result sort(final int column, final boolean descending) {
+         Collections.sort(rows, new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+               int order;
+               try {
+                  order = new BigDecimal(a.get(column).trim()).compareTo(new BigDecimal(b.get(column).trim()));
+               } catch (NumberFormatException e) {
+                  order = a.get(column).compareTo(b.get(column));
+               }
+               return descending ? -order : order;
+            }
+         });
+         return this;
+      }//end sort
+
+      /**
+       * @param count the number of rows to keep
+       * @return this result, without the rows past count
+       */
+      public Result limit(int count) {
+         if (rows.size() > count)
+            rows.subList(count, rows.size()).clear();
+         return this;
+      }//end limit
+
+      /**
+       * Prints the rows in the same layout as executeQueryAndPrintResult.
+       *
+       * @return the number of rows printed
+       */
+      public int print() {
+         if (rows.isEmpty())
+            return 0;
+         for (String column : columns)
+            System.out.print(String.format("%-20.20s", column) + "\t");
+         System.out.println();
+         for (List<String> row : rows) {
+            for (String value : row)
+               System.out.print(String.format("%-16.16s", value.trim()) + "\t");
+            System.out.println();
+         }
+         return rows.size();
+      }//end print
+   }//end Result
+
+   private final Cafe esql;
+   private final String globalUrl;
+   private final List<String> urls = new ArrayList<String>();
+   private final int home;
+   private Connection global = null;
+   private Connection[] connections;
+   private ExecutorService pool = null;
+
+   /**
+    * Creates the router for the stores configured in -Dcafe.stores.
+    *
+    * @param esql the Cafe whose credentials are used for the stores
+    * @param globalUrl the JDBC URL of the database holding Menu and Users
+    */
+   public StoreRouter(Cafe esql, String globalUrl) {
+      this.esql = esql;
+      this.globalUrl = globalUrl;
+      for (String url : System.getProperty("cafe.stores", "").split(","))
+         if (url.trim().length() > 0)
+            urls.add(url.trim());
+      this.home = Integer.getInteger("cafe.store", 0);
+      if (enabled() && (home < 0 || home >= urls.size()))
+         throw new IllegalArgumentException(String.format("cafe.store %d is not one of the %d configured stores", home, urls.size()));
+      this.connections = new Connection[urls.size()];
+   }//end StoreRouter
+
+   /**
+    * @return true if orders are sharded over several store databases
+    */
+   public boolean enabled() {
+      return !urls.isEmpty();
+   }
+
+   /**
+    * @return the store this register belongs to
+    */
+   public int home() {
+      return home;
+   }
+
+   /**
+    * @return the number of stores
+    */
+   public int count() {
+      return Math.max(1, urls.size());
+   }
+
+   /**
+    * @param store a store ID
+    * @return the JDBC URL of the store's database
+    */
+   public String url(int store) {
+      return enabled() ? urls.get(store) : globalUrl;
+   }
+
+   /**
+    * @param orderid an order ID
+    * @return the store the order was placed at
+    */
+   public int storeOf(long orderid) {
+      return (int) ((orderid - 1) % count());
+   }
+
+   /**
+    * @return the connection to the database holding Menu and Users
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public synchronized Connection global() throws SQLException {
+      if (global == null)
+         global = esql.openConnection(globalUrl);
+      return global;
+   }//end global
+
+   /**
+    * Takes a failed global connection out of use, so the next call reconnects.
+    */
+   public synchronized void globalFailed() {
+      close(global);
+      global = null;
+   }//end globalFailed
+
+   private synchronized Connection store(int store) throws SQLException {
+      if (connections[store] == null)
+         connections[store] = esql.openConnection(urls.get(store));
+      return connections[store];
+   }//end store
+
+   private synchronized ExecutorService pool() {
+      if (pool == null)
+         pool = Executors.newFixedThreadPool(urls.size(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "store-gather");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      return pool;
+   }//end pool
+
+   /**
+    * Runs a query on every store concurrently and gathers the rows.  A store
+    * that cannot answer fails the whole query, since a partial report would
+    * be wrong without saying so.
+    *
+    * @param query the query, run unchanged on every store
+    * @return the rows of all stores, in store order
+    * @throws java.sql.SQLException when any store failed
+    */
+   public Result gather(final String query) throws SQLException {
+      // one unit of work for the scheduler, however many stores it reaches
+      DbScheduler.admit();
+      try {
+         return scatter(query);
+      } finally {
+         DbScheduler.release();
+      }
+   }//end gather
+
+   private Result scatter(final String query) throws SQLException {
+      final int timeout = DbScheduler.timeout();
+      List<Future<Result>> parts = new ArrayList<Future<Result>>();
+      for (int store = 0; store < urls.size(); ++store) {
+         final int id = store;
+         parts.add(pool().submit(new Callable<Result>() {
+            public Result call() throws SQLException {
+               try {
+                  return query(store(id), query, timeout);
+               } catch (SQLException e) {
+                  synchronized (StoreRouter.this) {
+                     close(connections[id]);
+                     connections[id] = null;
+                  }
+                  throw new SQLException(String.format("Store %d: %s", id, e.getMessage()), e.getSQLState(), e);
+               }
+            }
+         }));
+      }
+      Result gathered = null;
+      for (Future<Result> part : parts) {
+         try {
+            Result result = part.get();
+            if (gathered == null)
+               gathered = result;
+            else
+               gathered.rows.addAll(result.rows);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while gathering from the stores");
+         } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException)
+               throw (SQLException) e.getCause();
+            throw new SQLException(e.getCause());
+         }
+      }
+      return gathered;
+   }//end scatter
+
+   private static Result query(Connection conn, String query, int timeout) throws SQLException {
+      Statement stmt = conn.createStatement();
+      stmt.setQueryTimeout(timeout);
+      try {
+         return Result.read(stmt.executeQuery(query));
+      } finally {
+         stmt.close();
+      }
+   }//end query
+
+   private static void close(Connection conn) {
+      try {
+         if (conn != null)
+            conn.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }//end close
+
+   /**
+    * Closes every store and global connection.
+    */
+   public synchronized void close() {
+      if (pool != null)
+         pool.shutdownNow();
+      pool = null;
+      close(global);
+      global = null;
+      for (int store = 0; store < connections.length; ++store) {
+         close(connections[store]);
+         connections[store] = null;
+      }
+   }//end close
+
+}//end StoreRouter
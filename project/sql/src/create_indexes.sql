@@ -6,4 +6,40 @@ USING BTREE
 CREATE INDEX index2
 ON ItemStatus
 USING BTREE
-( orderid );
\ No newline at end of file
+( orderid );
+
+--Orders of one customer, newest first: PlaceOrder's draft lookup and "repeat my last order",
+--and the customer's order history (without it these scan Orders, see PlanCheck).  Canceled
+--orders are left out, every one of these queries skips them
+CREATE INDEX orders_login_time
+ON orders
+USING BTREE
+( login, timeStampRecieved )
+WHERE NOT cancelled;
+
+--Canceled orders waiting for the maintenance reaper
+CREATE INDEX orders_cancelled
+ON orders
+USING BTREE
+( orderid )
+WHERE cancelled;
+
+--Customer lookup at the counter (Cafe.customerLookupQuery): trigram index for partial and
+--misspelled logins, prefix index for short prefixes, and the phone digits stored reversed
+--so a typed tail such as 393-1512 is an index prefix scan
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+CREATE INDEX users_login_trgm
+ON users
+USING GIN
+( lower(login::text) gin_trgm_ops );
+
+CREATE INDEX users_login_prefix
+ON users
+USING BTREE
+( lower(login::text) text_pattern_ops );
+
+CREATE INDEX users_phone_digits
+ON users
+USING BTREE
+( reverse(regexp_replace(phoneNum::text, '[^0-9]', '', 'g')) text_pattern_ops );
\ No newline at end of file
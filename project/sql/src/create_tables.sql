@@ -2,6 +2,13 @@ DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
 DROP TABLE ItemStatus;
+DROP TABLE SalesDaily;
+DROP TABLE SalesHourly;
+DROP TABLE SalesItem;
+DROP TABLE FavItems;
+DROP TABLE ItemPopularity;
+DROP TABLE JournalApplied;
+DROP TABLE JournalDropped;
 
 CREATE TABLE Users(
 	login char(50) UNIQUE NOT NULL, 
@@ -25,6 +32,8 @@ CREATE TABLE Orders(
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
 	total real NOT NULL,
+	--canceled orders are only flagged, the maintenance reaper deletes them in the background
+	cancelled boolean NOT NULL DEFAULT false,
 	PRIMARY KEY(orderid));
 
 CREATE TABLE ItemStatus(
@@ -33,8 +42,64 @@ CREATE TABLE ItemStatus(
 	lastUpdated timestamp NOT NULL,
 	status char(20), 
 	comments char(130), 
+	--Menu price when the line was added, set by the item_price trigger (triggers.sql)
+	price real,
 	PRIMARY KEY(orderid,itemName),
 	--Delete on cascade, when you want to cancel an order, so itemstatuses are deleted too
 	FOREIGN KEY(orderid) REFERENCES Orders(orderid) ON DELETE CASCADE,
 	--Add on update Cascade to update itemname in itemstatuses when menu is changed
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON update CASCADE) ;
+
+--Sales rollups, kept current by the triggers in triggers.sql so reports never scan Orders
+CREATE TABLE SalesDaily(
+	day date NOT NULL,
+	orders integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	PRIMARY KEY(day));
+
+CREATE TABLE SalesHourly(
+	day date NOT NULL,
+	hour integer NOT NULL,
+	orders integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	PRIMARY KEY(day,hour));
+
+CREATE TABLE SalesItem(
+	day date NOT NULL,
+	itemName char(50) NOT NULL,
+	quantity integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	PRIMARY KEY(day,itemName),
+	--Follow menu renames; an item that has sold cannot be deleted, so its sales history is kept
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON UPDATE CASCADE);
+
+--One row per favorite item, replaces the free text Users.favItems list
+CREATE TABLE FavItems(
+	login char(50) NOT NULL,
+	itemName char(50) NOT NULL,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE);
+
+--Last checkpoint of the in-process popularity counters (PopularityTracker)
+CREATE TABLE ItemPopularity(
+	itemName char(50) NOT NULL,
+	score real NOT NULL,
+	updated timestamp NOT NULL,
+	PRIMARY KEY(itemName),
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE);
+
+--Offline orders already replayed from a register's journal (OrderJournal), so replays are idempotent
+CREATE TABLE JournalApplied(
+	id char(36) NOT NULL,
+	orderid integer NOT NULL,
+	applied timestamp NOT NULL,
+	PRIMARY KEY(id));
+
+--Items of replayed offline orders that were no longer on the menu, for someone to follow up
+CREATE TABLE JournalDropped(
+	id char(36) NOT NULL,
+	orderid integer NOT NULL,
+	itemName char(50) NOT NULL,
+	dropped timestamp NOT NULL,
+	PRIMARY KEY(id,itemName));
@@ -6,12 +6,10 @@ COPY USERS
 FROM 'C:\Users\playt\Desktop\Spring 2022\CS166\Projects\phase3\project-1\project\data\users.csv'
 WITH DELIMITER ';';
 
-COPY ORDERS
-FROM 'C:\Users\playt\Desktop\Spring 2022\CS166\Projects\phase3\project-1\project\data\orders.csv'
-WITH DELIMITER ';';
-ALTER SEQUENCE orders_orderid_seq RESTART 87257;
-
-COPY ITEMSTATUS
-FROM 'C:\Users\playt\Desktop\Spring 2022\CS166\Projects\phase3\project-1\project\data\itemStatus.csv'
-WITH DELIMITER ';';
+--split the legacy comma separated favItems into FavItems rows, menu names match case insensitively
+INSERT INTO FavItems (login, itemName)
+SELECT DISTINCT U.login, M.itemName
+  FROM Users U, unnest(string_to_array(U.favItems::text, ',')) F(item), Menu M
+ WHERE lower(trim(F.item)) = lower(M.itemName::text);
 
+\ir load_orders.sql
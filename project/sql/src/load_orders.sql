@@ -0,0 +1,10 @@
+--Order history, loaded by load_data.sql, or on its own into a store database (see shard_setup.sql)
+COPY ORDERS (orderid, login, paid, timeStampRecieved, total)
+FROM 'C:\Users\playt\Desktop\Spring 2022\CS166\Projects\phase3\project-1\project\data\orders.csv'
+WITH DELIMITER ';';
+ALTER SEQUENCE orders_orderid_seq RESTART 87257;
+
+COPY ITEMSTATUS (orderid, itemName, lastUpdated, status, comments)
+FROM 'C:\Users\playt\Desktop\Spring 2022\CS166\Projects\phase3\project-1\project\data\itemStatus.csv'
+WITH DELIMITER ';';
+
@@ -0,0 +1,26 @@
+--Recomputes SalesDaily/SalesHourly/SalesItem from Orders and ItemStatus, run by triggers.sql
+--after loading and by shard_setup.sql after a store dropped the orders it does not own.
+DELETE FROM SalesDaily;
+DELETE FROM SalesHourly;
+DELETE FROM SalesItem;
+
+--loaded lines carry no price, they were charged the menu price of the time, the best known is today's
+UPDATE ItemStatus I SET price = M.price FROM Menu M WHERE I.itemName = M.itemName AND I.price IS NULL;
+
+INSERT INTO SalesDaily (day, orders, revenue)
+SELECT timestamprecieved::date, sum((total <> 0)::integer), sum(total::numeric)
+  FROM Orders
+ WHERE NOT cancelled
+ GROUP BY timestamprecieved::date;
+
+INSERT INTO SalesHourly (day, hour, orders, revenue)
+SELECT timestamprecieved::date, extract(hour FROM timestamprecieved), sum((total <> 0)::integer), sum(total::numeric)
+  FROM Orders
+ WHERE NOT cancelled
+ GROUP BY timestamprecieved::date, extract(hour FROM timestamprecieved);
+
+INSERT INTO SalesItem (day, itemName, quantity, revenue)
+SELECT I.lastUpdated::date, I.itemName, count(*), sum(coalesce(I.price, 0)::numeric)
+  FROM ItemStatus I, Orders O
+ WHERE I.orderid = O.orderid AND NOT O.cancelled
+ GROUP BY I.lastUpdated::date, I.itemName;
@@ -0,0 +1,26 @@
+--Store databases (see StoreRouter).  Menu, Users and FavItems are written to the global
+--database only and replicated to every store database (for example with logical
+--replication), since orders reference them.  Set up a store in this order:
+--  1. create_tables.sql
+--  2. subscribe to Menu, Users and FavItems of the global database and let the initial copy
+--     finish; do NOT run load_data.sql on a store, its local Menu and Users rows would make
+--     the subscription's copy fail with duplicate keys
+--  3. load_orders.sql, the order history only
+--  4. triggers.sql
+--  5. this script, with that store's ID and the number of stores, e.g.
+--       psql -v store=1 -v stores=3 -f shard_setup.sql <store 1 database>
+
+--Every store loaded the whole history, keep only the orders this store owns, so each order
+--ID lives in the store StoreRouter.storeOf names and cross-store reports count it once.
+DELETE FROM Orders WHERE (orderid - 1) % :stores <> :store;
+
+--the deletes above went through the rollup triggers row by row, recompute them from what is left
+\ir rebuild_rollups.sql
+
+--Store k of n only draws order IDs with (orderid - 1) % n = k, so order IDs stay unique
+--across stores and every order ID names the store that took it.
+ALTER SEQUENCE orders_orderid_seq INCREMENT BY :stores;
+
+SELECT setval('orders_orderid_seq',
+              (greatest(coalesce((SELECT max(orderid) FROM orders), 0), 86653) / :stores + 1) * :stores + :store + 1,
+              false);
@@ -8,7 +8,8 @@ RETURNS "trigger" AS
 $BODY$
 BEGIN
 NEW.orderId := nextval('orders_orderid_seq');
-NEW.timestamprecieved := Now();
+--keep the time an order was taken offline, see OrderJournal
+NEW.timestamprecieved := coalesce(NEW.timestamprecieved, Now());
 NEW.total := 0;
 RETURN NEW;
 END;
@@ -18,4 +19,144 @@ LANGUAGE plpgsql VOLATILE;
 
 CREATE TRIGGER name BEFORE INSERT
     ON orders FOR EACH ROW
-    EXECUTE PROCEDURE func_name();
\ No newline at end of file
+    EXECUTE PROCEDURE func_name();
+
+--Sales rollups: every change to an order total or an order line is applied as a delta
+--to SalesDaily/SalesHourly/SalesItem, so reports read a handful of rows instead of Orders.
+DROP TRIGGER IF EXISTS order_sales_rollup ON orders;
+DROP TRIGGER IF EXISTS item_sales_rollup ON itemstatus;
+DROP TRIGGER IF EXISTS item_price ON itemstatus;
+
+--every line keeps the menu price it was charged at, so later price changes do not rewrite sales
+CREATE OR REPLACE FUNCTION item_price()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+IF NEW.price IS NULL THEN
+   SELECT price INTO NEW.price FROM Menu WHERE itemName = NEW.itemName;
+END IF;
+RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+--the rollup rows are upserted with the update-or-insert loop of the PostgreSQL manual rather than
+--ON CONFLICT, which the 9.3 servers in use lack: when two registers write the first order of a
+--period at once, the one whose insert loses retries its update instead of aborting the checkout.
+--Every order of a period updates the same SalesDaily and SalesHourly row, so concurrent checkouts
+--queue on that row lock until they commit.
+CREATE OR REPLACE FUNCTION sales_rollup_add(ts timestamp, dorders integer, drevenue numeric)
+RETURNS void AS
+$BODY$
+BEGIN
+IF dorders = 0 AND drevenue = 0 THEN
+   RETURN;
+END IF;
+LOOP
+   UPDATE SalesDaily SET orders = orders + dorders, revenue = revenue + drevenue
+    WHERE day = ts::date;
+   EXIT WHEN FOUND;
+   BEGIN
+      INSERT INTO SalesDaily (day, orders, revenue) VALUES (ts::date, dorders, drevenue);
+      EXIT;
+   EXCEPTION WHEN unique_violation THEN
+      --another register inserted the row first, update it
+   END;
+END LOOP;
+LOOP
+   UPDATE SalesHourly SET orders = orders + dorders, revenue = revenue + drevenue
+    WHERE day = ts::date AND hour = extract(hour FROM ts);
+   EXIT WHEN FOUND;
+   BEGIN
+      INSERT INTO SalesHourly (day, hour, orders, revenue) VALUES (ts::date, extract(hour FROM ts), dorders, drevenue);
+      EXIT;
+   EXCEPTION WHEN unique_violation THEN
+      --another register inserted the row first, update it
+   END;
+END LOOP;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION order_sales_rollup()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+--an order only counts once it has a non-zero total and while it is not canceled, so empty
+--drafts never show up and canceled orders drop out (the reaper's deletes then change nothing)
+--the canceled lines come out at the price they were rolled up at, ItemStatus.price
+IF TG_OP = 'UPDATE' AND NEW.cancelled AND NOT OLD.cancelled THEN
+   UPDATE SalesItem S SET quantity = S.quantity - L.quantity, revenue = S.revenue - L.revenue
+     FROM (SELECT I.lastUpdated::date AS day, I.itemName, count(*) AS quantity, sum(coalesce(I.price, 0)::numeric) AS revenue
+             FROM ItemStatus I
+            WHERE I.orderid = NEW.orderid
+            GROUP BY I.lastUpdated::date, I.itemName) L
+    WHERE S.day = L.day AND S.itemName = L.itemName;
+END IF;
+IF TG_OP = 'UPDATE' AND date_trunc('hour', OLD.timestamprecieved) = date_trunc('hour', NEW.timestamprecieved) THEN
+   PERFORM sales_rollup_add(NEW.timestamprecieved,
+                            (NOT NEW.cancelled AND NEW.total <> 0)::integer - (NOT OLD.cancelled AND OLD.total <> 0)::integer,
+                            (CASE WHEN NEW.cancelled THEN 0 ELSE NEW.total END)::numeric - (CASE WHEN OLD.cancelled THEN 0 ELSE OLD.total END)::numeric);
+   RETURN NULL;
+END IF;
+IF TG_OP IN ('UPDATE', 'DELETE') AND NOT OLD.cancelled THEN
+   PERFORM sales_rollup_add(OLD.timestamprecieved, -(OLD.total <> 0)::integer, -OLD.total::numeric);
+END IF;
+IF TG_OP IN ('UPDATE', 'INSERT') AND NOT NEW.cancelled THEN
+   PERFORM sales_rollup_add(NEW.timestamprecieved, (NEW.total <> 0)::integer, NEW.total::numeric);
+END IF;
+RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION item_sales_rollup()
+RETURNS "trigger" AS
+$BODY$
+DECLARE
+   sign integer;
+   line ItemStatus%ROWTYPE;
+BEGIN
+IF TG_OP = 'INSERT' THEN
+   sign := 1;
+   line := NEW;
+ELSE
+   sign := -1;
+   line := OLD;
+END IF;
+--lines of canceled orders were taken out when the order was canceled, and a reaped order is
+--already gone when its lines are deleted
+IF NOT EXISTS (SELECT 1 FROM Orders WHERE orderid = line.orderid AND NOT cancelled) THEN
+   RETURN NULL;
+END IF;
+--lines are valued at the price they were charged, not the menu price of today
+LOOP
+   UPDATE SalesItem SET quantity = quantity + sign, revenue = revenue + sign * coalesce(line.price, 0)::numeric
+    WHERE day = line.lastUpdated::date AND itemName = line.itemName;
+   EXIT WHEN FOUND OR sign < 0;
+   BEGIN
+      INSERT INTO SalesItem (day, itemName, quantity, revenue) VALUES (line.lastUpdated::date, line.itemName, 1, coalesce(line.price, 0)::numeric);
+      EXIT;
+   EXCEPTION WHEN unique_violation THEN
+      --another register inserted the row first, update it
+   END;
+END LOOP;
+RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+--rebuild the rollups from the loaded history once, the triggers keep them current afterwards
+\ir rebuild_rollups.sql
+
+CREATE TRIGGER order_sales_rollup AFTER INSERT OR UPDATE OF total, timestamprecieved, cancelled OR DELETE
+    ON orders FOR EACH ROW
+    EXECUTE PROCEDURE order_sales_rollup();
+
+CREATE TRIGGER item_price BEFORE INSERT
+    ON itemstatus FOR EACH ROW
+    EXECUTE PROCEDURE item_price();
+
+CREATE TRIGGER item_sales_rollup AFTER INSERT OR DELETE
+    ON itemstatus FOR EACH ROW
+    EXECUTE PROCEDURE item_sales_rollup();